@@ -3,22 +3,35 @@ package clientside;
 import java.util.Scanner;
 
 import javax.xml.namespace.QName;
+import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Service;
+import javax.xml.ws.handler.MessageContext;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
 
 import serverside.ServerOperationsInterface;
 
 public class Client {
 
 	private static Scanner keyboard = new Scanner(System.in);
+	// operation of each number of the menus given by showOptions, from 1
+	private static final int[] ADMIN_OPTIONS = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 11, 12, 13, 14, 15, 16, 17, 18, 19 };
+	private static final int[] PARTICIPANT_OPTIONS = { 0, 10, 5, 6, 7, 11, 12, 13, 14, 15, 16, 17, 19 };
+	// trace id sent with the last request, to find it in the servers' trace files
+	private static String traceId;
 
 	public static void main(String[] args) throws Exception {
 
@@ -57,6 +70,7 @@ public class Client {
 
 		// Gets the Service Port
 		ServerOperationsInterface server = service.getPort(ServerOperationsInterface.class);
+		setTraceId(server);
 
 		boolean isUserAdmin = server.isAdmin(userID);
 		System.out.println("Choose from the following options");
@@ -74,13 +88,13 @@ public class Client {
 		while (choice != 0) {
 			String wsDestCity = "";
 			String wsDestPort = "";
-			if (isUserAdmin) {
-			} else {
-				choice += 3;
-				if (choice == 4) {
-					choice = 10;
-				}
-			}
+			// the number picked in the menu to the operation below, anything not
+			// in the menu is invalid
+			int[] options = isUserAdmin ? ADMIN_OPTIONS : PARTICIPANT_OPTIONS;
+			if (choice > 0 && choice < options.length)
+				choice = options[choice];
+			else
+				choice = -1;
 			if (choice == 1) {
 				System.out.println("Adding reservation slot:");
 				eventType = promptString("event type");
@@ -157,6 +171,39 @@ public class Client {
 				serverResponse = server.exchangeTickets(userID, tbcEventID, tbaEventID, eventType);
 				updateLog(logFile.getName(), "Exhange ticket", serverResponse, dateTime);
 				System.out.println(serverResponse);
+			} else if (choice == 8) {
+				System.out.println("Reserving tickets for a group: ");
+				eventType = promptString("event type");
+				eventID = promptString("eventID");
+				int groupSize = promptInt("number of participants");
+				keyboard.nextLine();
+				String[] participantIDs = new String[groupSize];
+				String[] eventIDs = new String[groupSize];
+				String[] eventTypes = new String[groupSize];
+				for (int i = 0; i < groupSize; i++) {
+					participantIDs[i] = promptString("userID " + (i + 1));
+					eventIDs[i] = eventID;
+					eventTypes[i] = eventType;
+				}
+				dateTime = getTime();
+
+				server = getServer(getEventCity(eventID));
+
+				String[] serverResponses = server.reserveTickets(participantIDs, eventIDs, eventTypes);
+				serverResponse = String.join("\n", serverResponses);
+				updateLog(logFile.getName(), "Reserve tickets for a group", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 9) {
+				System.out.println("Importing reservation slots: ");
+				String fileName = promptString("file of eventID,eventType,capacity lines");
+				dateTime = getTime();
+
+				String slots = new String(Files.readAllBytes(Paths.get(fileName)));
+				server = getServer(city);
+
+				serverResponse = server.importReservationSlots(slots);
+				updateLog(logFile.getName(), "Import reservation slots", serverResponse, dateTime);
+				System.out.println(serverResponse);
 			} else if (choice == 10) {
 				System.out.println("Reserving ticket: ");
 				eventType = promptString("event type");
@@ -168,6 +215,97 @@ public class Client {
 				serverResponse = server.reserveTicket(userID, eventID, eventType);
 				updateLog(logFile.getName(), "Reserve ticket", serverResponse, dateTime);
 				System.out.println(serverResponse);
+			} else if (choice == 11) {
+				System.out.println("Joining waitlist: ");
+				eventType = promptString("event type");
+				eventID = promptString("eventID");
+				dateTime = getTime();
+
+				server = getServer(getEventCity(eventID));
+
+				serverResponse = server.joinWaitlist(userID, eventID, eventType);
+				updateLog(logFile.getName(), "Join waitlist", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 12) {
+				System.out.println("Getting notifications: ");
+				dateTime = getTime();
+
+				server = getServer(city);
+
+				serverResponse = server.getNotifications(userID);
+				updateLog(logFile.getName(), "Get notifications", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 13) {
+				System.out.println("Listing reservation slots between two dates: ");
+				eventType = promptString("event type");
+				String fromDate = promptString("first date (ddMMyy)");
+				String toDate = promptString("last date (ddMMyy)");
+				dateTime = getTime();
+
+				server = getServer(city);
+
+				serverResponse = server.listReservationSlotsBetween(eventType, fromDate, toDate);
+				updateLog(logFile.getName(), "List reservation slots between dates", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 14) {
+				System.out.println("Searching archived events: ");
+				String key = userID;
+				if (isUserAdmin)
+					key = promptString("eventID or userID");
+				dateTime = getTime();
+
+				server = getServer(city);
+
+				serverResponse = server.getArchivedEvents(key);
+				updateLog(logFile.getName(), "Search archived events", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 15) {
+				System.out.println("Holding ticket: ");
+				eventType = promptString("event type");
+				eventID = promptString("eventID");
+				dateTime = getTime();
+
+				server = getServer(getEventCity(eventID));
+
+				serverResponse = server.holdTicket(userID, eventID, eventType);
+				updateLog(logFile.getName(), "Hold ticket", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 16 || choice == 17) {
+				System.out.println(choice == 16 ? "Confirming held ticket: " : "Releasing held ticket: ");
+				eventID = promptString("eventID");
+				dateTime = getTime();
+
+				server = getServer(getEventCity(eventID));
+
+				if (choice == 16) {
+					serverResponse = server.confirmHold(userID, eventID);
+					updateLog(logFile.getName(), "Confirm held ticket", serverResponse, dateTime);
+				} else {
+					serverResponse = server.releaseHold(userID, eventID);
+					updateLog(logFile.getName(), "Release held ticket", serverResponse, dateTime);
+				}
+				System.out.println(serverResponse);
+			} else if (choice == 18 && isUserAdmin) {
+				System.out.println("Getting occupancy summary: ");
+				dateTime = getTime();
+
+				server = getServer(city);
+
+				serverResponse = server.getOccupancySummary();
+				updateLog(logFile.getName(), "Get occupancy summary", serverResponse, dateTime);
+				System.out.println(serverResponse);
+			} else if (choice == 19) {
+				System.out.println("Finding available slots: ");
+				eventType = promptString("event type");
+				String date = promptString("date (ddMMyy)");
+				int count = promptInt("number of slots");
+				dateTime = getTime();
+
+				server = getServer(city);
+
+				serverResponse = server.findAvailableSlots(eventType, date, count);
+				updateLog(logFile.getName(), "Find available slots", serverResponse, dateTime);
+				System.out.println(serverResponse);
 			} else
 				System.out.println("Invalid option. Pick again.");
 			System.out.println();
@@ -213,6 +351,7 @@ public class Client {
 			writer.write("----------------------------------------\n");
 			writer.write("Date and time requested: " + dateTime + "\n");
 			writer.write("Request: " + request + "\n");
+			writer.write("Trace ID: " + traceId + "\n");
 			writer.write("Response: " + response + "\n\n");
 			writer.close();
 		} catch (IOException e) {
@@ -268,7 +407,23 @@ public class Client {
 		QName qName = new QName("http://serverside/", "ServerOperationsImplService");
 		Service service = Service.create(url, qName);
 		ServerOperationsInterface server = service.getPort(ServerOperationsInterface.class);
+		setTraceId(server);
 		
 		return server;
 	}
+
+	/**
+	 * gives the requests of server a new trace id, sent in the X-Trace-Id header,
+	 * and a new Idempotency-Key so the server applies the request only once even
+	 * if it is sent again
+	 * 
+	 * @param server
+	 */
+	private static void setTraceId(ServerOperationsInterface server) {
+		traceId = UUID.randomUUID().toString().substring(0, 8);
+		HashMap<String, List<String>> headers = new HashMap<String, List<String>>();
+		headers.put("X-Trace-Id", Collections.singletonList(traceId));
+		headers.put("Idempotency-Key", Collections.singletonList(UUID.randomUUID().toString()));
+		((BindingProvider) server).getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS, headers);
+	}
 }
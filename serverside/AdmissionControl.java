@@ -0,0 +1,159 @@
+package serverside;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if a request is let in when the server is overloaded. Every
+ * participant and every other city gets a token bucket: a request takes a
+ * token, tokens come back at a fixed rate up to the burst size, and a request
+ * finding the bucket empty is rejected. On top of that only a limited number
+ * of requests run at once, the next ones are rejected right away instead of
+ * waiting in line.
+ */
+public class AdmissionControl {
+
+	public static final String BUSY = "Server busy, try again later";
+
+	// buckets are swept once there are this many, the full ones are dropped
+	private static final int SWEEP_SIZE = 10000;
+
+	private class TokenBucket {
+		double tokens;
+		long last;
+
+		TokenBucket(double burst) {
+			tokens = burst;
+			last = System.nanoTime();
+		}
+
+		synchronized boolean take(double rate, double burst) {
+			refill(rate, burst);
+			if (tokens < 1)
+				return false;
+			tokens--;
+			return true;
+		}
+
+		synchronized boolean isFull(double rate, double burst) {
+			refill(rate, burst);
+			return tokens >= burst;
+		}
+
+		private void refill(double rate, double burst) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+		}
+	}
+
+	private double participantRate;
+	private double participantBurst;
+	private double cityRate;
+	private double cityBurst;
+	private ConcurrentHashMap<String, TokenBucket> participants;
+	private ConcurrentHashMap<String, TokenBucket> cities;
+	private Semaphore running;
+	private AtomicLong participantRejected;
+	private AtomicLong cityRejected;
+	private AtomicLong busyRejected;
+
+	/**
+	 * @param participantRate  requests per second of a participant, 0 for no
+	 *                         limit
+	 * @param participantBurst requests a participant can send at once
+	 * @param cityRate         datagrams per second of another city, 0 for no
+	 *                         limit
+	 * @param cityBurst        datagrams another city can send at once
+	 * @param maxRunning       requests running at once, 0 for no limit
+	 */
+	public AdmissionControl(double participantRate, double participantBurst, double cityRate, double cityBurst,
+			int maxRunning) {
+		this.participantRate = participantRate;
+		this.participantBurst = Math.max(1, participantBurst);
+		this.cityRate = cityRate;
+		this.cityBurst = Math.max(1, cityBurst);
+		this.participants = new ConcurrentHashMap<String, TokenBucket>();
+		this.cities = new ConcurrentHashMap<String, TokenBucket>();
+		this.running = maxRunning > 0 ? new Semaphore(maxRunning) : null;
+		this.participantRejected = new AtomicLong();
+		this.cityRejected = new AtomicLong();
+		this.busyRejected = new AtomicLong();
+	}
+
+	/**
+	 * @param participantID
+	 * @return true if the participant did not go over its rate
+	 */
+	public boolean admitParticipant(String participantID) {
+		if (participantRate <= 0)
+			return true;
+		if (!take(participants, participantID, participantRate, participantBurst)) {
+			participantRejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param city the city that sent the datagram
+	 * @return true if the city did not go over its rate
+	 */
+	public boolean admitCity(String city) {
+		if (cityRate <= 0)
+			return true;
+		if (!take(cities, city, cityRate, cityBurst)) {
+			cityRejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * takes one of the running slots, exit must be called once the request is
+	 * done
+	 *
+	 * @return false if all slots are taken
+	 */
+	public boolean enter() {
+		if (running == null || running.tryAcquire())
+			return true;
+		busyRejected.incrementAndGet();
+		return false;
+	}
+
+	public void exit() {
+		if (running != null)
+			running.release();
+	}
+
+	public String report() {
+		return "\trejected participant=" + participantRejected.get() + " city=" + cityRejected.get() + " busy="
+				+ busyRejected.get() + "\n";
+	}
+
+	private boolean take(ConcurrentHashMap<String, TokenBucket> buckets, String key, double rate, double burst) {
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null) {
+			if (buckets.size() >= SWEEP_SIZE)
+				sweep(buckets, rate, burst);
+			bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(burst));
+		}
+		return bucket.take(rate, burst);
+	}
+
+	/**
+	 * drops the buckets that are full again, a new bucket would be the same
+	 */
+	private void sweep(ConcurrentHashMap<String, TokenBucket> buckets, double rate, double burst) {
+		Iterator<Map.Entry<String, TokenBucket>> it = buckets.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, TokenBucket> bucketPair = it.next();
+			if (bucketPair.getValue().isFull(rate, burst))
+				it.remove();
+		}
+	}
+}
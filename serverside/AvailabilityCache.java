@@ -0,0 +1,128 @@
+package serverside;
+
+import java.util.HashMap;
+import java.util.function.Function;
+
+/**
+ * Caches the availability replies of the other cities per city and event type.
+ *
+ * An entry younger than the TTL is served as is. An entry older than the TTL
+ * but younger than the staleness bound is still served, but a background
+ * refresh is started for it (stale-while-revalidate). Anything older is
+ * fetched again before returning.
+ *
+ * Each invalidation moves the generation of its entries forward, and a reply
+ * loaded before the invalidation is dropped instead of replacing it.
+ */
+public class AvailabilityCache {
+
+	private class Entry {
+		String reply;
+		long fetchedAt;
+		boolean refreshing;
+	}
+
+	private HashMap<String, Entry> entries;
+	// generation of the last invalidation of each key, and of the last time
+	// everything was dropped
+	private HashMap<String, Long> generations;
+	private long generation;
+	private long clearedGeneration;
+	private long ttl;
+	private long maxStale;
+
+	public AvailabilityCache(long ttl, long maxStale) {
+		this.entries = new HashMap<String, Entry>();
+		this.generations = new HashMap<String, Long>();
+		this.ttl = ttl;
+		this.maxStale = Math.max(ttl, maxStale);
+	}
+
+	/**
+	 * gets the availability of a city for an event type
+	 *
+	 * @param city
+	 * @param eventType
+	 * @param loader    queries the city, called with the event type
+	 * @return the cached or freshly loaded reply
+	 */
+	public String get(String city, String eventType, Function<String, String> loader) {
+		String key = city + " " + eventType;
+		long now = System.currentTimeMillis();
+		Entry entry;
+		boolean refreshInBackground = false;
+		long loadGeneration;
+		synchronized (this) {
+			loadGeneration = getGeneration(key);
+			entry = entries.get(key);
+			if (entry != null) {
+				long age = now - entry.fetchedAt;
+				if (age <= ttl)
+					return entry.reply;
+				if (age <= maxStale) {
+					if (!entry.refreshing) {
+						entry.refreshing = true;
+						refreshInBackground = true;
+					}
+				}
+			}
+		}
+		if (refreshInBackground) {
+			final Entry staleEntry = entry;
+			Thread refresher = new Thread(() -> {
+				String reply = loader.apply(eventType);
+				put(key, reply, staleEntry, loadGeneration);
+			});
+			refresher.setDaemon(true);
+			refresher.start();
+			return entry.reply;
+		}
+		if (entry != null && now - entry.fetchedAt <= maxStale)
+			return entry.reply;
+		String reply = loader.apply(eventType);
+		put(key, reply, null, loadGeneration);
+		return reply;
+	}
+
+	/**
+	 * stores a loaded reply, unless the key was invalidated since the load
+	 * started
+	 *
+	 * @param key
+	 * @param reply
+	 * @param previous       the stale entry being refreshed, or null
+	 * @param loadGeneration generation of the key when the load started
+	 */
+	private synchronized void put(String key, String reply, Entry previous, long loadGeneration) {
+		if (previous != null)
+			previous.refreshing = false;
+		if (reply == null || getGeneration(key) != loadGeneration)
+			return;
+		Entry entry = new Entry();
+		entry.reply = reply;
+		entry.fetchedAt = System.currentTimeMillis();
+		entries.put(key, entry);
+	}
+
+	/**
+	 * drops the cached reply of a city for an event type
+	 *
+	 * @param city
+	 * @param eventType
+	 */
+	public synchronized void invalidate(String city, String eventType) {
+		String key = city + " " + eventType;
+		entries.remove(key);
+		generations.put(key, ++generation);
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+		clearedGeneration = ++generation;
+	}
+
+	private long getGeneration(String key) {
+		Long keyGeneration = generations.get(key);
+		return keyGeneration == null ? clearedGeneration : Math.max(keyGeneration, clearedGeneration);
+	}
+}
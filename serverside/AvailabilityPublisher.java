@@ -0,0 +1,136 @@
+package serverside;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the seat count changes of this city to the other cities.
+ *
+ * Changed events are collected and sent once per interval as "D" datagrams:
+ *
+ * <pre>
+ * D &lt;city&gt; &lt;epoch&gt; &lt;seq&gt;
+ * &lt;eventID&gt;;&lt;eventType&gt;;&lt;remaining&gt;
+ * ...
+ * </pre>
+ *
+ * A remaining count of -1 means the event was removed. The values are read
+ * when the batch is sent, so a batch always carries the latest counts and
+ * applying it twice does no harm. Every datagram gets the next sequence
+ * number, and a heartbeat "D &lt;city&gt; &lt;epoch&gt; &lt;seq&gt; H" carrying
+ * the last sequence number is sent when there is nothing to publish so the
+ * other cities can notice a lost batch.
+ */
+public class AvailabilityPublisher extends Thread {
+
+	private static final int MAX_DATAGRAM = 1000;
+
+	private String city;
+	private long epoch;
+	private long seq;
+	private long interval;
+	private long heartbeatInterval;
+	private long lastSent;
+	private LinkedHashMap<String, String> pending;
+	private BiFunction<String, String, Integer> remaining;
+	private Consumer<String> sender;
+
+	/**
+	 * @param city              the city publishing
+	 * @param interval          milliseconds between batches
+	 * @param heartbeatInterval milliseconds without batch before a heartbeat is
+	 *                          sent
+	 * @param remaining         gives the remaining seats of an event id and type,
+	 *                          or -1 if it does not exist
+	 * @param sender            sends a datagram to every other city
+	 */
+	public AvailabilityPublisher(String city, long interval, long heartbeatInterval,
+			BiFunction<String, String, Integer> remaining, Consumer<String> sender) {
+		this.city = city;
+		this.epoch = System.currentTimeMillis();
+		this.seq = 0;
+		this.interval = interval;
+		this.heartbeatInterval = heartbeatInterval;
+		this.pending = new LinkedHashMap<String, String>();
+		this.remaining = remaining;
+		this.sender = sender;
+		setDaemon(true);
+	}
+
+	/**
+	 * marks an event as changed, it will be sent with the next batch
+	 *
+	 * @param eventID
+	 * @param eventType
+	 */
+	public synchronized void changed(String eventID, String eventType) {
+		pending.put(eventID, eventType);
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return the sequence number of the last batch sent
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * sends the pending changes, or a heartbeat if there are none
+	 */
+	public synchronized void publish() {
+		long now = System.currentTimeMillis();
+		if (pending.isEmpty()) {
+			if (now - lastSent >= heartbeatInterval) {
+				sender.accept("D " + city + " " + epoch + " " + seq + " H");
+				lastSent = now;
+			}
+			return;
+		}
+		ArrayList<String> lines = new ArrayList<String>();
+		Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, String> eventPair = it.next();
+			String eventID = eventPair.getKey();
+			String eventType = eventPair.getValue();
+			lines.add(eventID + ";" + eventType + ";" + remaining.apply(eventID, eventType));
+		}
+		pending.clear();
+
+		// split the lines into datagrams that fit in the receive buffer
+		String batch = null;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			if (batch != null && batch.length() + line.length() + 1 > MAX_DATAGRAM) {
+				sender.accept(batch);
+				batch = null;
+			}
+			if (batch == null) {
+				seq++;
+				batch = "D " + city + " " + epoch + " " + seq;
+			}
+			batch += "\n" + line;
+		}
+		if (batch != null)
+			sender.accept(batch);
+		lastSent = now;
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			publish();
+		}
+	}
+}
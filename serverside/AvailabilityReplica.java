@@ -0,0 +1,258 @@
+package serverside;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+/**
+ * Read-only copy of the availability of the other cities, kept up to date by
+ * the batches sent by their {@link AvailabilityPublisher}.
+ *
+ * When a batch is missing, or the other city restarted, the copy of that city
+ * is resynchronized with "Y &lt;eventType&gt;[;&lt;after eventID&gt;]" requests,
+ * one per page of the events of each type. The reply holds the sequence
+ * number the page was taken at, and + when more pages follow:
+ *
+ * <pre>
+ * &lt;epoch&gt; &lt;seq&gt; [+]
+ * &lt;eventID&gt; &lt;remaining&gt;
+ * ...
+ * </pre>
+ *
+ * The copy starts from the lowest sequence number of the pages, the batches
+ * after it set the events they hold to their newer count.
+ *
+ * Batches received while resynchronizing are kept and applied once the
+ * snapshots are in.
+ */
+public class AvailabilityReplica {
+
+	private class CityReplica {
+		long epoch = -1;
+		long seq;
+		boolean synced;
+		boolean resyncing;
+		// lines of a type in a batch at or before this sequence are older than
+		// the snapshot of the type
+		HashMap<String, Long> snapshotSeq = new HashMap<String, Long>();
+		HashMap<String, TreeMap<String, Integer>> events = new HashMap<String, TreeMap<String, Integer>>();
+		ArrayList<String> buffered = new ArrayList<String>();
+	}
+
+	private HashMap<String, CityReplica> cities;
+	private String[] eventTypes;
+	private BiFunction<String, String, String> query;
+	private AvailabilityCache availabilityCache;
+
+	/**
+	 * @param cities            the other cities
+	 * @param eventTypes        the event types to resynchronize
+	 * @param query             sends a request to a city and returns its reply,
+	 *                          or null if it could not be reached
+	 * @param availabilityCache cache to invalidate when a city's availability
+	 *                          changes
+	 */
+	public AvailabilityReplica(String[] cities, String[] eventTypes, BiFunction<String, String, String> query,
+			AvailabilityCache availabilityCache) {
+		this.cities = new HashMap<String, CityReplica>();
+		for (int i = 0; i < cities.length; i++)
+			this.cities.put(cities[i], new CityReplica());
+		this.eventTypes = eventTypes;
+		this.query = query;
+		this.availabilityCache = availabilityCache;
+	}
+
+	/**
+	 * applies a batch received from another city
+	 *
+	 * @param batch the whole "D" datagram
+	 */
+	public void receive(String batch) {
+		String[] lines = batch.split("\n");
+		String[] header = lines[0].split(" ");
+		String city = header[1];
+		long epoch = Long.parseLong(header[2]);
+		long seq = Long.parseLong(header[3]);
+		boolean heartbeat = header.length > 4;
+		CityReplica replica = cities.get(city);
+		if (replica == null)
+			return;
+		boolean resync = false;
+		synchronized (replica) {
+			if (replica.resyncing) {
+				if (!heartbeat)
+					replica.buffered.add(batch);
+			} else if (replica.epoch != epoch) {
+				resync = true;
+				if (!heartbeat)
+					replica.buffered.add(batch);
+			} else if (seq <= replica.seq) {
+				// already applied, or a heartbeat without missing batch
+			} else if (seq == replica.seq + 1 && !heartbeat) {
+				apply(city, replica, seq, lines);
+			} else {
+				resync = true;
+				if (!heartbeat)
+					replica.buffered.add(batch);
+			}
+			if (resync) {
+				replica.synced = false;
+				replica.resyncing = true;
+			}
+		}
+		if (resync) {
+			Thread resyncer = new Thread(() -> resync(city));
+			resyncer.setDaemon(true);
+			resyncer.start();
+		}
+	}
+
+	private void apply(String city, CityReplica replica, long seq, String[] lines) {
+		for (int i = 1; i < lines.length; i++) {
+			String[] fields = lines[i].split(";");
+			String eventID = fields[0];
+			String eventType = fields[1];
+			int remaining = Integer.parseInt(fields[2]);
+			Long typeSeq = replica.snapshotSeq.get(eventType);
+			if (typeSeq != null && seq <= typeSeq)
+				continue;
+			TreeMap<String, Integer> events = replica.events.get(eventType);
+			if (events == null) {
+				events = new TreeMap<String, Integer>();
+				replica.events.put(eventType, events);
+			}
+			if (remaining < 0)
+				events.remove(eventID);
+			else
+				events.put(eventID, remaining);
+			availabilityCache.invalidate(city, eventType);
+		}
+		replica.seq = seq;
+	}
+
+	/**
+	 * reloads the copy of a city from snapshots of every event type
+	 *
+	 * @param city
+	 */
+	private void resync(String city) {
+		CityReplica replica = cities.get(city);
+		HashMap<String, TreeMap<String, Integer>> events = new HashMap<String, TreeMap<String, Integer>>();
+		HashMap<String, Long> snapshotSeq = new HashMap<String, Long>();
+		long epoch = -1;
+		long minSeq = Long.MAX_VALUE;
+		for (int i = 0; i < eventTypes.length; i++) {
+			TreeMap<String, Integer> typeEvents = new TreeMap<String, Integer>();
+			long typeSeq = Long.MAX_VALUE;
+			boolean restarted = false;
+			boolean more = true;
+			while (more) {
+				String request = "Y " + eventTypes[i] + (typeEvents.isEmpty() ? "" : ";" + typeEvents.lastKey());
+				String reply = query.apply(city, request);
+				if (reply == null) {
+					synchronized (replica) {
+						replica.resyncing = false;
+						replica.buffered.clear();
+					}
+					return;
+				}
+				String[] lines = reply.trim().split("\n");
+				String[] header = lines[0].split(" ");
+				long snapshotEpoch = Long.parseLong(header[0]);
+				if (epoch != -1 && epoch != snapshotEpoch) {
+					restarted = true;
+					break;
+				}
+				epoch = snapshotEpoch;
+				typeSeq = Math.min(typeSeq, Long.parseLong(header[1]));
+				int before = typeEvents.size();
+				for (int j = 1; j < lines.length; j++) {
+					String[] fields = lines[j].trim().split(" ");
+					if (fields.length == 2)
+						typeEvents.put(fields[0], Integer.parseInt(fields[1]));
+				}
+				// a page without events would ask for the same page again
+				more = header.length > 2 && typeEvents.size() > before;
+			}
+			if (restarted) {
+				// the city restarted while we were asking, start over
+				i = -1;
+				events.clear();
+				snapshotSeq.clear();
+				minSeq = Long.MAX_VALUE;
+				epoch = -1;
+				continue;
+			}
+			events.put(eventTypes[i], typeEvents);
+			snapshotSeq.put(eventTypes[i], typeSeq);
+			minSeq = Math.min(minSeq, typeSeq);
+		}
+
+		synchronized (replica) {
+			replica.epoch = epoch;
+			replica.seq = minSeq;
+			replica.events = events;
+			replica.snapshotSeq = snapshotSeq;
+			replica.resyncing = false;
+			replica.synced = true;
+			ArrayList<String> buffered = replica.buffered;
+			replica.buffered = new ArrayList<String>();
+			for (int i = 0; i < buffered.size(); i++) {
+				String[] lines = buffered.get(i).split("\n");
+				String[] header = lines[0].split(" ");
+				long seq = Long.parseLong(header[3]);
+				if (Long.parseLong(header[2]) != epoch || seq <= replica.seq)
+					continue;
+				if (seq != replica.seq + 1) {
+					// still missing a batch, the next heartbeat starts another resync
+					replica.synced = false;
+					replica.epoch = -1;
+					break;
+				}
+				apply(city, replica, seq, lines);
+			}
+		}
+		for (int i = 0; i < eventTypes.length; i++)
+			availabilityCache.invalidate(city, eventTypes[i]);
+	}
+
+	/**
+	 * @param city
+	 * @return true if the copy of the city can be used to answer listings
+	 */
+	public boolean isSynced(String city) {
+		CityReplica replica = cities.get(city);
+		if (replica == null)
+			return false;
+		synchronized (replica) {
+			return replica.synced;
+		}
+	}
+
+	/**
+	 * lists the available slots of a city in the same format as
+	 * listReservationSlotAvailableLocal
+	 *
+	 * @param city
+	 * @param eventType
+	 * @return
+	 */
+	public String listReservationSlotAvailable(String city, String eventType) {
+		String result = "";
+		CityReplica replica = cities.get(city);
+		synchronized (replica) {
+			TreeMap<String, Integer> events = replica.events.get(eventType);
+			if (events == null)
+				return result;
+			Iterator<Map.Entry<String, Integer>> it = events.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Integer> eventPair = it.next();
+				result += "\t" + eventPair.getKey() + " " + eventPair.getValue() + "\n";
+			}
+		}
+		return result;
+	}
+}
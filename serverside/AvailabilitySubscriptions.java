@@ -0,0 +1,234 @@
+package serverside;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiFunction;
+
+/**
+ * Pushes the seat count changes of this city's events to the front-ends that
+ * subscribed to them, instead of having them call
+ * listReservationSlotAvailable in a loop.
+ *
+ * A subscription is for an event type or an event ID and gives a host and
+ * port to push to. Changed events are collected and, once per interval, every
+ * subscription with changes gets "U" datagrams:
+ *
+ * <pre>
+ * U &lt;city&gt; &lt;subscription id&gt; &lt;seq&gt;
+ * &lt;eventID&gt;;&lt;eventType&gt;;&lt;remaining&gt;
+ * ...
+ * </pre>
+ *
+ * A remaining count of -1 means the event was removed. The sequence number of
+ * a subscription goes up by one per datagram, a subscriber that sees a gap
+ * lists the events again. A subscription ends when its lease runs out,
+ * subscribing again with the same topic and address renews it.
+ */
+public class AvailabilitySubscriptions extends Thread {
+
+	private static final int MAX_DATAGRAM = 1000;
+
+	private class Subscription {
+		String id;
+		String topic;
+		InetAddress host;
+		int port;
+		long seq;
+		long expires;
+		// changes to push at the next interval, by event id
+		LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>();
+	}
+
+	private String city;
+	private long interval;
+	private long lease;
+	// subscriptions by "topic host:port", and by topic
+	private HashMap<String, Subscription> subscriptions;
+	private HashMap<String, ArrayList<Subscription>> byTopic;
+	private BiFunction<String, String, Integer> remaining;
+	private DatagramSocket socket;
+
+	/**
+	 * @param city      the city pushing
+	 * @param interval  milliseconds between pushes
+	 * @param lease     milliseconds a subscription lasts without being renewed
+	 * @param remaining gives the remaining seats of an event id and type, or -1
+	 *                  if it does not exist
+	 */
+	public AvailabilitySubscriptions(String city, long interval, long lease,
+			BiFunction<String, String, Integer> remaining) {
+		this.city = city;
+		this.interval = interval;
+		this.lease = lease;
+		this.subscriptions = new HashMap<String, Subscription>();
+		this.byTopic = new HashMap<String, ArrayList<Subscription>>();
+		this.remaining = remaining;
+		setDaemon(true);
+	}
+
+	/**
+	 * adds a subscription, or renews it if the address already subscribed to
+	 * the topic
+	 *
+	 * @param topic an event type or an event ID
+	 * @param host
+	 * @param port
+	 * @return the id of the subscription
+	 * @throws IOException if the host is unknown
+	 */
+	public String subscribe(String topic, String host, int port) throws IOException {
+		// resolved before taking the lock, the changes of every event wait on it
+		InetAddress address = InetAddress.getByName(host);
+		String key = topic + " " + host + ":" + port;
+		synchronized (this) {
+			Subscription subscription = subscriptions.get(key);
+			if (subscription == null) {
+				subscription = new Subscription();
+				subscription.id = UUID.randomUUID().toString().substring(0, 8);
+				subscription.topic = topic;
+				subscription.host = address;
+				subscription.port = port;
+				subscriptions.put(key, subscription);
+				if (!byTopic.containsKey(topic))
+					byTopic.put(topic, new ArrayList<Subscription>());
+				byTopic.get(topic).add(subscription);
+			}
+			subscription.expires = System.currentTimeMillis() + lease;
+			return subscription.id;
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return false if there is no subscription with this id
+	 */
+	public synchronized boolean unsubscribe(String id) {
+		Iterator<Subscription> it = subscriptions.values().iterator();
+		while (it.hasNext()) {
+			Subscription subscription = it.next();
+			if (subscription.id.equals(id)) {
+				it.remove();
+				byTopic.get(subscription.topic).remove(subscription);
+				if (byTopic.get(subscription.topic).isEmpty())
+					byTopic.remove(subscription.topic);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * marks an event as changed for the subscriptions to its id or its type
+	 *
+	 * @param eventID
+	 * @param eventType
+	 */
+	public synchronized void changed(String eventID, String eventType) {
+		addPending(byTopic.get(eventID), eventID, eventType);
+		addPending(byTopic.get(eventType), eventID, eventType);
+	}
+
+	private void addPending(ArrayList<Subscription> topicSubscriptions, String eventID, String eventType) {
+		if (topicSubscriptions == null)
+			return;
+		for (int i = 0; i < topicSubscriptions.size(); i++)
+			topicSubscriptions.get(i).pending.put(eventID, eventType);
+	}
+
+	/**
+	 * sends the pending changes of every subscription and drops the expired
+	 * ones. The changes are taken under the lock and sent without it, so the
+	 * events changing meanwhile do not wait on the network. Only this thread
+	 * pushes, the sequence numbers are not shared.
+	 */
+	public void push() {
+		long now = System.currentTimeMillis();
+		ArrayList<Subscription> changedSubscriptions = new ArrayList<Subscription>();
+		ArrayList<LinkedHashMap<String, String>> changes = new ArrayList<LinkedHashMap<String, String>>();
+		synchronized (this) {
+			Iterator<Subscription> it = subscriptions.values().iterator();
+			while (it.hasNext()) {
+				Subscription subscription = it.next();
+				if (subscription.expires < now) {
+					it.remove();
+					byTopic.get(subscription.topic).remove(subscription);
+					if (byTopic.get(subscription.topic).isEmpty())
+						byTopic.remove(subscription.topic);
+					continue;
+				}
+				if (subscription.pending.isEmpty())
+					continue;
+				changedSubscriptions.add(subscription);
+				changes.add(subscription.pending);
+				subscription.pending = new LinkedHashMap<String, String>();
+			}
+		}
+
+		// the remaining seats are read once per event, however many subscribers
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < changedSubscriptions.size(); i++) {
+			Subscription subscription = changedSubscriptions.get(i);
+			String batch = null;
+			Iterator<Map.Entry<String, String>> eventIt = changes.get(i).entrySet().iterator();
+			while (eventIt.hasNext()) {
+				Map.Entry<String, String> eventPair = eventIt.next();
+				String eventID = eventPair.getKey();
+				String eventType = eventPair.getValue();
+				Integer count = counts.get(eventID);
+				if (count == null) {
+					count = remaining.apply(eventID, eventType);
+					counts.put(eventID, count);
+				}
+				String line = eventID + ";" + eventType + ";" + count;
+				if (batch != null && batch.length() + line.length() + 1 > MAX_DATAGRAM) {
+					send(subscription, batch);
+					batch = null;
+				}
+				if (batch == null) {
+					subscription.seq++;
+					batch = "U " + city + " " + subscription.id + " " + subscription.seq;
+				}
+				batch += "\n" + line;
+			}
+			if (batch != null)
+				send(subscription, batch);
+		}
+	}
+
+	private void send(Subscription subscription, String batch) {
+		try {
+			if (socket == null)
+				socket = new DatagramSocket();
+			byte[] m = batch.getBytes();
+			socket.send(new DatagramPacket(m, m.length, subscription.host, subscription.port));
+		} catch (SocketException e) {
+			System.out.println("Socket: " + e.getMessage());
+		} catch (IOException e) {
+			System.out.println("IO: " + e.getMessage());
+		}
+	}
+
+	public synchronized int getSubscriptionCount() {
+		return subscriptions.size();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			push();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package serverside;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Past events taken out of the catalog. Every archiving run writes one
+ * segment file in the archive directory, with a line per event:
+ *
+ * <pre>
+ * &lt;eventID&gt;;&lt;eventType&gt;;&lt;capacity&gt;;&lt;booked&gt;;&lt;participantID&gt;,&lt;participantID&gt;,...
+ * </pre>
+ *
+ * Nothing of the archive stays in memory, a search reads the segments.
+ */
+public class EventArchive {
+
+	private File directory;
+	private long segments;
+
+	public EventArchive(String directoryName) {
+		this.directory = new File(directoryName);
+	}
+
+	/**
+	 * writes the lines of archived events to a new segment. The segment is
+	 * written under a temporary name first, so a failed write leaves no partial
+	 * segment behind.
+	 *
+	 * @param lines
+	 * @throws IOException
+	 */
+	public synchronized void write(ArrayList<String> lines) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create " + directory);
+		String name = "segment-" + System.currentTimeMillis() + "-" + segments++;
+		File temp = new File(directory, name + ".tmp");
+		FileWriter writer = new FileWriter(temp);
+		try {
+			for (int i = 0; i < lines.size(); i++)
+				writer.write(lines.get(i) + "\n");
+		} finally {
+			writer.close();
+		}
+		if (!temp.renameTo(new File(directory, name)))
+			throw new IOException("Could not rename " + temp);
+	}
+
+	/**
+	 * finds the archived events with an event ID, or booked by a user
+	 *
+	 * @param key an event ID or a participant ID
+	 * @return one "eventID;eventType;capacity;booked;bookings" line per event
+	 * @throws IOException
+	 */
+	public synchronized ArrayList<String> search(String key) throws IOException {
+		ArrayList<String> found = new ArrayList<String>();
+		File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && !name.endsWith(".tmp"));
+		if (files == null)
+			return found;
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; i++) {
+			BufferedReader reader = new BufferedReader(new FileReader(files[i]));
+			try {
+				String line = reader.readLine();
+				while (line != null) {
+					String[] fields = line.split(";", 5);
+					if (fields.length == 5 && (fields[0].equals(key)
+							|| Arrays.asList(fields[4].split(",")).contains(key)))
+						found.add(line);
+					line = reader.readLine();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return found;
+	}
+}
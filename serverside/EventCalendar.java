@@ -0,0 +1,117 @@
+package serverside;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Index of the events of a city in date order. The date and time of day of an
+ * event are read once from its ID (&lt;city&gt;&lt;M|A|E&gt;&lt;ddMMyy&gt;)
+ * into a key (epoch day * 3 + time of day), so the events of a day or of a
+ * range of days are found without going through the whole catalog. Events of
+ * the same day and time of day are indexed by their key and ID together, so
+ * none of them replaces another.
+ */
+public class EventCalendar {
+
+	private static final String SLOTS = "MAE";
+
+	// event IDs by "<key> <eventID>", with the key padded so the entries sort
+	// in key order, per event type
+	private HashMap<String, ConcurrentSkipListMap<String, String>> types;
+
+	/**
+	 * @param eventTypes the event types of the catalog, no other type can be
+	 *                   added later
+	 */
+	public EventCalendar(Collection<String> eventTypes) {
+		types = new HashMap<String, ConcurrentSkipListMap<String, String>>();
+		Iterator<String> it = eventTypes.iterator();
+		while (it.hasNext())
+			types.put(it.next(), new ConcurrentSkipListMap<String, String>());
+	}
+
+	/**
+	 * @param date ddMMyy
+	 * @return days since 1970-01-01, or -1 if the date is invalid
+	 */
+	public static long getDay(String date) {
+		if (date.length() != 6)
+			return -1;
+		try {
+			int day = Integer.parseInt(date.substring(0, 2));
+			int month = Integer.parseInt(date.substring(2, 4));
+			int year = 2000 + Integer.parseInt(date.substring(4, 6));
+			return LocalDate.of(year, month, day).toEpochDay();
+		} catch (NumberFormatException | DateTimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param eventID
+	 * @return the key of the event, or -1 if its ID has no valid date and time
+	 *         of day
+	 */
+	public static long getKey(String eventID) {
+		if (eventID.length() != 10)
+			return -1;
+		int slot = SLOTS.indexOf(eventID.charAt(3));
+		long day = getDay(eventID.substring(4));
+		if (slot < 0 || day < 0)
+			return -1;
+		return day * 3 + slot;
+	}
+
+	/**
+	 * @param key
+	 * @return the key padded to sort as text, the start of the entries of the
+	 *         key
+	 */
+	private static String pad(long key) {
+		return String.format("%012d", key);
+	}
+
+	public void add(String eventID, String eventType) {
+		long key = getKey(eventID);
+		ConcurrentSkipListMap<String, String> events = types.get(eventType);
+		if (key >= 0 && events != null)
+			events.put(pad(key) + " " + eventID, eventID);
+	}
+
+	public void remove(String eventID, String eventType) {
+		long key = getKey(eventID);
+		ConcurrentSkipListMap<String, String> events = types.get(eventType);
+		if (key >= 0 && events != null)
+			events.remove(pad(key) + " " + eventID);
+	}
+
+	/**
+	 * @param eventType
+	 * @param day
+	 * @return the IDs of the events of the type before the day, in date order
+	 */
+	public ArrayList<String> before(String eventType, long day) {
+		ConcurrentSkipListMap<String, String> events = types.get(eventType);
+		if (events == null)
+			return new ArrayList<String>();
+		return new ArrayList<String>(events.headMap(pad(day * 3), false).values());
+	}
+
+	/**
+	 * @param eventType
+	 * @param fromDay   first day, as given by getDay
+	 * @param toDay     last day, included
+	 * @return the IDs of the events of the type in those days, in date order
+	 */
+	public ArrayList<String> between(String eventType, long fromDay, long toDay) {
+		ConcurrentSkipListMap<String, String> events = types.get(eventType);
+		if (events == null || fromDay > toDay)
+			return new ArrayList<String>();
+		return new ArrayList<String>(events.subMap(pad(fromDay * 3), true, pad(toDay * 3 + 3), false).values());
+	}
+}
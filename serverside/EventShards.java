@@ -0,0 +1,76 @@
+package serverside;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the events into shards by event ID hash. Each shard is owned by one
+ * thread that runs the operations on its events in the order they were
+ * submitted, so the events of a shard are only ever changed by that thread.
+ */
+public class EventShards {
+
+	private ExecutorService[] executors;
+	// index of the shard owned by the current thread, -1 outside the shards
+	private ThreadLocal<Integer> currentShard;
+
+	public EventShards(String serverName, int shardCount) {
+		executors = new ExecutorService[shardCount];
+		currentShard = ThreadLocal.withInitial(() -> -1);
+		for (int i = 0; i < shardCount; i++) {
+			final int shard = i;
+			executors[i] = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(() -> {
+					currentShard.set(shard);
+					runnable.run();
+				}, serverName + "-shard-" + shard);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	public int getShard(String eventID) {
+		return Math.floorMod(eventID.hashCode(), executors.length);
+	}
+
+	/**
+	 * runs work on the thread owning the event and waits for it
+	 *
+	 * @param eventID
+	 * @param work
+	 * @return what work returned
+	 */
+	public <T> T run(String eventID, Callable<T> work) {
+		int shard = getShard(eventID);
+		if (currentShard.get() == shard)
+			return call(work);
+		return await(executors[shard].submit(work));
+	}
+
+	private <T> T call(Callable<T> work) {
+		try {
+			return work.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a shard", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
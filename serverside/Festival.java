@@ -1,14 +1,35 @@
 package serverside;
 
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 public class Festival {
+	public static final int BOOKED = 0;
+	public static final int ALREADY_BOOKED = 1;
+	public static final int FULL = 2;
+
 	private int capacity;
 	private int booked;
 	private LinkedList<String> bookings;
 	private String host;
+	// writers hold the write lock, the counters are read optimistically so
+	// listings never block a reservation
+	private final StampedLock lock = new StampedLock();
+	// incremented by every change, lets exchanges validate what they read
+	private long version;
+	// users whose booking is held by an exchange to another city
+	private HashSet<String> held = new HashSet<String>();
+	// users holding a seat they did not confirm yet, the seats count as taken
+	private HashSet<String> seatHolds = new HashSet<String>();
+	// users waiting for a seat, in the order they joined
+	private LinkedHashSet<String> waitlist = new LinkedHashSet<String>();
+	// orders the locking of two festivals
+	private static final AtomicLong nextId = new AtomicLong();
+	private final long id = nextId.getAndIncrement();
 	
 	public Festival() {
 		this.capacity = 0;
@@ -43,7 +64,13 @@ public class Festival {
 	}
 
 	public void setCapacity(int capacity) {
-		this.capacity = capacity;
+		long stamp = lock.writeLock();
+		try {
+			this.capacity = capacity;
+			version++;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 
 	public int getBooked() {
@@ -51,31 +78,358 @@ public class Festival {
 	}
 
 	public void setBooked(int booked) {
-		this.booked = booked;
+		long stamp = lock.writeLock();
+		try {
+			this.booked = booked;
+			version++;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * reads capacity and booked together without locking, retrying while a
+	 * writer changes them
+	 * 
+	 * @return number of seats left, the held seats are not
+	 */
+	public int getRemaining() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			int remaining = capacity - booked - seatHolds.size();
+			if (stamp != 0 && lock.validate(stamp))
+				return remaining;
+			Thread.yield();
+		}
 	}
 	
 	public boolean addBookings(String participantID) {
-		boolean addAllowed = !bookings.contains(participantID);
-		if (addAllowed) {
+		long stamp = lock.writeLock();
+		try {
+			boolean addAllowed = !bookings.contains(participantID);
+			if (addAllowed) {
+				booked++;
+				bookings.add(participantID);
+				version++;
+			}
+			return addAllowed;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * books a user if the user is not booked yet, there is a seat left and
+	 * nobody is waiting for one, all under the write lock
+	 * 
+	 * @param participantID
+	 * @return BOOKED, ALREADY_BOOKED or FULL
+	 */
+	public int tryBook(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			if (bookings.contains(participantID))
+				return ALREADY_BOOKED;
+			if (booked + seatHolds.size() >= capacity || !waitlist.isEmpty())
+				return FULL;
 			booked++;
 			bookings.add(participantID);
+			version++;
+			return BOOKED;
+		} finally {
+			lock.unlockWrite(stamp);
 		}
-		return addAllowed;
 	}
-	
+
 	public boolean removeBookings(String participantID) {
-		boolean removeSuccess = bookings.remove(participantID);
-		if (removeSuccess)
-			booked--;
-		return removeSuccess;
+		long stamp = lock.writeLock();
+		try {
+			boolean removeSuccess = bookings.remove(participantID);
+			if (removeSuccess) {
+				booked--;
+				version++;
+			}
+			return removeSuccess;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the version of the festival, read without locking
+	 */
+	public long getVersion() {
+		while (true) {
+			long stamp = lock.tryOptimisticRead();
+			long current = version;
+			if (stamp != 0 && lock.validate(stamp))
+				return current;
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * holds the booking of a user while an exchange asks another city, the
+	 * booking can't be cancelled or exchanged until the hold is completed
+	 * 
+	 * @param participantID
+	 * @return false if the user is not booked or the booking is already held
+	 */
+	public boolean holdBooking(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			if (!bookings.contains(participantID) || !held.add(participantID))
+				return false;
+			version++;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * releases the hold of a user, removing the booking if the exchange went
+	 * through
+	 * 
+	 * @param participantID
+	 * @param removeBooking
+	 */
+	public void completeHold(String participantID, boolean removeBooking) {
+		long stamp = lock.writeLock();
+		try {
+			held.remove(participantID);
+			if (removeBooking && bookings.remove(participantID))
+				booked--;
+			version++;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean isHeld(String participantID) {
+		long stamp = lock.readLock();
+		try {
+			return held.contains(participantID);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * moves the booking of a user from one festival to another if neither
+	 * changed since their versions were read. The booking and the free seat
+	 * are checked again under the locks, a reservation does not go through
+	 * the versions.
+	 * 
+	 * @param from
+	 * @param fromVersion
+	 * @param to
+	 * @param toVersion
+	 * @param participantID
+	 * @return false if one of the festivals changed, nothing is moved then
+	 */
+	public static boolean exchange(Festival from, long fromVersion, Festival to, long toVersion,
+			String participantID) {
+		Festival first = from.id < to.id ? from : to;
+		Festival second = first == from ? to : from;
+		long firstStamp = first.lock.writeLock();
+		try {
+			long secondStamp = second.lock.writeLock();
+			try {
+				if (from.version != fromVersion || to.version != toVersion)
+					return false;
+				if (!from.bookings.contains(participantID) || from.held.contains(participantID)
+						|| to.bookings.contains(participantID)
+						|| to.booked + to.seatHolds.size() >= to.capacity || !to.waitlist.isEmpty())
+					return false;
+				from.bookings.remove(participantID);
+				from.booked--;
+				from.version++;
+				to.bookings.add(participantID);
+				to.booked++;
+				to.version++;
+				return true;
+			} finally {
+				second.lock.unlockWrite(secondStamp);
+			}
+		} finally {
+			first.lock.unlockWrite(firstStamp);
+		}
+	}
+
+	/**
+	 * adds a user at the end of the waitlist
+	 * 
+	 * @param participantID
+	 * @return the position of the user in the waitlist, or 0 if the user is
+	 *         already booked or waiting
+	 */
+	public int addWaiter(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			if (bookings.contains(participantID) || !waitlist.add(participantID))
+				return 0;
+			version++;
+			return waitlist.size();
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean removeWaiter(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			boolean removed = waitlist.remove(participantID);
+			if (removed)
+				version++;
+			return removed;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the first user of the waitlist, or null if nobody is waiting
+	 */
+	public String getNextWaiter() {
+		long stamp = lock.readLock();
+		try {
+			return waitlist.isEmpty() ? null : waitlist.iterator().next();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public boolean hasWaiters() {
+		long stamp = lock.readLock();
+		try {
+			return !waitlist.isEmpty();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int getWaitlistSize() {
+		long stamp = lock.readLock();
+		try {
+			return waitlist.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * takes the first user out of the waitlist, booking the user if allowed. An
+	 * allowed user stays first in line while there is no seat.
+	 * 
+	 * @param participantID the user expected first in line
+	 * @param allowed       false if the user can't be booked anymore
+	 * @return false if the user is not first in line anymore, or is allowed but
+	 *         there is no seat
+	 */
+	public boolean promoteWaiter(String participantID, boolean allowed) {
+		long stamp = lock.writeLock();
+		try {
+			if (waitlist.isEmpty() || !waitlist.iterator().next().equals(participantID))
+				return false;
+			if (allowed && booked + seatHolds.size() >= capacity)
+				return false;
+			waitlist.remove(participantID);
+			if (allowed && !bookings.contains(participantID)) {
+				booked++;
+				bookings.add(participantID);
+			}
+			version++;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * takes a seat for a user until the hold is confirmed or released
+	 * 
+	 * @param participantID
+	 * @return false if the user is booked or holds a seat already, or there is
+	 *         no seat left
+	 */
+	public boolean holdSeat(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			if (booked + seatHolds.size() >= capacity || bookings.contains(participantID)
+					|| !seatHolds.add(participantID))
+				return false;
+			version++;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * books the seat held by a user
+	 * 
+	 * @param participantID
+	 * @return false if the user holds no seat
+	 */
+	public boolean confirmSeat(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			if (!seatHolds.remove(participantID))
+				return false;
+			booked++;
+			bookings.add(participantID);
+			version++;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * gives back the seat held by a user
+	 * 
+	 * @param participantID
+	 * @return false if the user holds no seat
+	 */
+	public boolean releaseSeat(String participantID) {
+		long stamp = lock.writeLock();
+		try {
+			if (!seatHolds.remove(participantID))
+				return false;
+			version++;
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public int getSeatHolds() {
+		long stamp = lock.readLock();
+		try {
+			return seatHolds.size();
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 
 	public LinkedList<String> getBookings() {
-		return new LinkedList<String>(bookings);
+		long stamp = lock.readLock();
+		try {
+			return new LinkedList<String>(bookings);
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 
 	public void setBookings(LinkedList<String> bookings) {
-		this.bookings = new LinkedList<String>(bookings);
+		long stamp = lock.writeLock();
+		try {
+			this.bookings = new LinkedList<String>(bookings);
+			version++;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
 	}
 
 	public String getHost() {
@@ -87,17 +441,15 @@ public class Festival {
 	}
 	
 	public boolean isFull() {
-		return booked == capacity;
+		return getRemaining() <= 0;
 	}
 	
 	public boolean isUserBooked(String userID) {
-		Iterator it = bookings.iterator();
-		while(it.hasNext()) {
-			String temp = (String) it.next();
-			if(temp.equals(userID)) {
-				return true;
-			}
+		long stamp = lock.readLock();
+		try {
+			return bookings.contains(userID);
+		} finally {
+			lock.unlockRead(stamp);
 		}
-		return false;
 	}
 }
@@ -0,0 +1,223 @@
+package serverside;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+
+/**
+ * Read-only copy of a city, run as a second process next to the city server.
+ * It asks the city for the events changed since the last request (see
+ * {@link MutationLog}), applies them to its own catalog, and answers the "A",
+ * "P" and "O" requests of the other cities in its place. A city sends those
+ * to its follower when the follower.&lt;city&gt;.port property gives its port.
+ *
+ * The lag is the number of changes the follower has not applied yet, and the
+ * milliseconds since it was last caught up. It is in the reply to "S".
+ *
+ * Until the first copy is complete, and again while it reloads the catalog
+ * from the beginning, the follower holds only part of the events and leaves
+ * the requests unanswered, so the sender goes to the city itself.
+ *
+ * Usage: java serverside.Follower &lt;city&gt; [port]
+ */
+public class Follower extends Thread {
+
+	private static final int MAX_DATAGRAM = 65507;
+
+	private ServerOperationsImpl serverOps;
+	private String city;
+	private int cityPort;
+	private int port;
+	private long interval;
+	private int timeout;
+	private long epoch = -1;
+	private long seq;
+	private long head;
+	private long caughtUp;
+	// true until a copy from the beginning reached the head of the log
+	private volatile boolean reloading = true;
+
+	/**
+	 * @param serverOps catalog of the follower
+	 * @param cityPort  UDP port of the city followed
+	 * @param port      UDP port the follower answers on
+	 * @param interval  milliseconds between requests once caught up
+	 * @param timeout   milliseconds to wait for the city
+	 */
+	public Follower(ServerOperationsImpl serverOps, int cityPort, int port, long interval, int timeout) {
+		super(serverOps.serverName + "-follower");
+		this.serverOps = serverOps;
+		this.city = serverOps.serverName;
+		this.cityPort = cityPort;
+		this.port = port;
+		this.interval = interval;
+		this.timeout = timeout;
+		this.caughtUp = System.currentTimeMillis();
+		setDaemon(true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String city = args[0];
+		int cityPort;
+		if (city.equals("MTL"))
+			cityPort = 5000;
+		else if (city.equals("TOR"))
+			cityPort = 5001;
+		else
+			cityPort = 5002;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : cityPort + 100;
+
+		// same event types as the city servers, the events come from the city
+		HashMap<String, HashMap<String, Festival>> db = new HashMap<String, HashMap<String, Festival>>();
+		db.put("Art Gallery", new HashMap<String, Festival>());
+		db.put("Concerts", new HashMap<String, Festival>());
+		db.put("Theatre", new HashMap<String, Festival>());
+		ServerOperationsImpl serverOps = new ServerOperationsImpl(city, db, true);
+
+		Follower follower = new Follower(serverOps, cityPort, port, Long.getLong("follower.interval", 100),
+				Integer.getInteger("udp.timeout", 2000));
+		follower.start();
+		System.out.println(city + " follower has started.");
+		follower.serve();
+	}
+
+	/**
+	 * asks the city for its changes, right away while behind and once per
+	 * interval when caught up
+	 */
+	public void run() {
+		DatagramSocket socket = null;
+		try {
+			socket = new DatagramSocket();
+			socket.setSoTimeout(timeout);
+			InetAddress host = InetAddress.getByName("localhost");
+			boolean reachable = true;
+			while (true) {
+				if (seq >= head || !reachable) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				byte[] m = ("F " + city + "-follower:" + port + " " + epoch + " " + seq).getBytes();
+				socket.send(new DatagramPacket(m, m.length, host, cityPort));
+				byte[] buffer = new byte[MAX_DATAGRAM];
+				DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(reply);
+				} catch (SocketTimeoutException e) {
+					if (reachable)
+						System.out.println(city + " did not answer its follower");
+					reachable = false;
+					continue;
+				}
+				reachable = true;
+				apply(new String(reply.getData(), 0, reply.getLength()));
+			}
+		} catch (SocketException e) {
+			System.out.println("Socket: " + e.getMessage());
+		} catch (IOException e) {
+			System.out.println("IO: " + e.getMessage());
+		} finally {
+			if (socket != null)
+				socket.close();
+		}
+	}
+
+	/**
+	 * applies a reply of the city
+	 *
+	 * @param reply "M &lt;city&gt; &lt;epoch&gt; &lt;last seq sent&gt; &lt;last
+	 *              seq&gt; [R]" followed by one line per event
+	 */
+	private void apply(String reply) {
+		String[] lines = reply.split("\n");
+		String[] header = lines[0].split(" ");
+		if (header.length < 5 || !header[0].equals("M"))
+			return;
+		if (header.length > 5) {
+			reloading = true;
+			serverOps.clearCatalog();
+		}
+		for (int i = 1; i < lines.length; i++)
+			serverOps.applyMutation(lines[i]);
+		synchronized (this) {
+			epoch = Long.parseLong(header[2]);
+			seq = Long.parseLong(header[3]);
+			head = Long.parseLong(header[4]);
+			if (seq >= head) {
+				caughtUp = System.currentTimeMillis();
+				reloading = false;
+			}
+		}
+	}
+
+	/**
+	 * @return the changes not applied yet, and the milliseconds since the
+	 *         follower was last caught up
+	 */
+	public synchronized String getLag() {
+		long behind = Math.max(0, head - seq);
+		long millis = behind == 0 ? 0 : System.currentTimeMillis() - caughtUp;
+		return "\tfollower lag=" + behind + " changes, " + millis + " ms\n";
+	}
+
+	/**
+	 * answers the read-only requests of the other cities
+	 */
+	public void serve() {
+		DatagramSocket aSocket = null;
+		try {
+			aSocket = new DatagramSocket(port);
+			System.out.println(city + " follower with port " + port + " ready and waiting ...");
+			while (true) {
+				byte[] buffer = new byte[1000];
+				DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+				aSocket.receive(request);
+				String requestString = (new String(request.getData(), 0, request.getLength())).trim();
+				// T <origin city> <trace id> <request>, the trace is not followed here
+				if (requestString.startsWith("T ")) {
+					String[] envelope = requestString.split(" ", 4);
+					requestString = envelope[3];
+				}
+				String operation = "follower " + requestString.charAt(0);
+				long start = System.nanoTime();
+				String result = null;
+				try {
+					if (reloading && requestString.charAt(0) != 'S') {
+						// part of the catalog only, left unanswered
+					} else if (requestString.charAt(0) == 'A') {
+						result = serverOps.listReservationSlotAvailableLocal(requestString.substring(2));
+					} else if (requestString.charAt(0) == 'P') {
+						result = serverOps.getEventScheduleLocal(requestString.substring(2));
+					} else if (requestString.charAt(0) == 'O') {
+						result = serverOps.getOccupancySummaryLocal();
+					} else if (requestString.charAt(0) == 'S') {
+						result = serverOps.handlePeerRequest(requestString) + getLag();
+					}
+				} catch (RuntimeException e) {
+					System.out.println("Follower request " + requestString + " failed: " + e);
+				}
+				// anything else changes the catalog and is left unanswered, the
+				// sender then goes to the city itself, as while reloading
+				if (result != null) {
+					byte[] m = result.getBytes();
+					aSocket.send(new DatagramPacket(m, m.length, request.getAddress(), request.getPort()));
+				}
+				serverOps.stats.record(operation, result != null, start);
+			}
+		} catch (SocketException e) {
+			System.out.println("Socket error");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (aSocket != null)
+				aSocket.close();
+		}
+	}
+}
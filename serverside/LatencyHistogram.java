@@ -0,0 +1,104 @@
+package serverside;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in microseconds with log-linear buckets, in the
+ * style of HdrHistogram: values below 64 get their own bucket, larger values
+ * are split into 32 buckets per power of two, so a percentile is off by at
+ * most about 3%. Recording is one array increment, without locking.
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 64;
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// first power of two split into sub-buckets is 2^6 = 64
+	private static final int FIRST_MAGNITUDE = 6;
+
+	private AtomicLongArray counts;
+	private LongAdder count;
+	private LongAdder sum;
+	private AtomicLong max;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(LINEAR_BUCKETS + (64 - FIRST_MAGNITUDE) * SUB_BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * @param micros latency in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(bucket(micros));
+		count.increment();
+		sum.add(micros);
+		long currentMax = max.get();
+		while (micros > currentMax && !max.compareAndSet(currentMax, micros))
+			currentMax = max.get();
+	}
+
+	private static int bucket(long micros) {
+		if (micros < LINEAR_BUCKETS)
+			return (int) micros;
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (magnitude - FIRST_MAGNITUDE) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long lowestValue(int bucket) {
+		if (bucket < LINEAR_BUCKETS)
+			return bucket;
+		int magnitude = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_MAGNITUDE;
+		long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (1L << magnitude) + (subBucket << (magnitude - SUB_BUCKET_BITS));
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the latency in microseconds below which the percentile of the
+	 *         recorded latencies fall
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.sum();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100 * n);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(lowestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return "n=<count> mean=<us> p50=<us> p99=<us> max=<us>"
+	 */
+	public String summary() {
+		return "n=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile(50) + " p99="
+				+ getPercentile(99) + " max=" + getMax();
+	}
+}
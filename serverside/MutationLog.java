@@ -0,0 +1,157 @@
+package serverside;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Order in which the events of this city changed, read by the followers that
+ * keep a copy of the catalog. Every change of an event gives it the next
+ * sequence number, and a follower asks for the events changed after the last
+ * sequence number it applied:
+ *
+ * <pre>
+ * F &lt;epoch&gt; &lt;seq&gt;
+ * </pre>
+ *
+ * The events are sent with their state at the time of the reply, so an event
+ * changed many times is sent once and a follower that applies it ends up
+ * with the latest state. Every event of the catalog is in the log, so a
+ * follower starting from 0 gets the whole catalog. Removed events are kept
+ * for a while for the followers that did not see the removal yet, a follower
+ * behind the oldest removal dropped, or asking with the epoch of a previous
+ * run, has to start over from 0.
+ */
+public class MutationLog {
+
+	private class Position {
+		long seq;
+		long time;
+	}
+
+	private long epoch;
+	private long seq;
+	// a follower behind this has to start over
+	private long minSeq;
+	private int maxRemoved;
+	// event IDs by the sequence number of their last change, and the other way
+	private TreeMap<Long, String> events;
+	private HashMap<String, Long> seqs;
+	private HashMap<String, String> types;
+	// removed events, oldest removal first
+	private LinkedHashSet<String> removed;
+	// last position asked by each follower
+	private HashMap<String, Position> followers;
+
+	/**
+	 * @param maxRemoved how many removed events are kept
+	 */
+	public MutationLog(int maxRemoved) {
+		this.epoch = System.currentTimeMillis();
+		this.maxRemoved = Math.max(1, maxRemoved);
+		this.events = new TreeMap<Long, String>();
+		this.seqs = new HashMap<String, Long>();
+		this.types = new HashMap<String, String>();
+		this.removed = new LinkedHashSet<String>();
+		this.followers = new HashMap<String, Position>();
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return the sequence number of the last change
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * gives an event the next sequence number
+	 *
+	 * @param eventID
+	 * @param eventType
+	 * @param isRemoved true if the event is no longer in the catalog
+	 */
+	public synchronized void changed(String eventID, String eventType, boolean isRemoved) {
+		Long last = seqs.get(eventID);
+		if (last != null)
+			events.remove(last);
+		seq++;
+		events.put(seq, eventID);
+		seqs.put(eventID, seq);
+		types.put(eventID, eventType);
+		removed.remove(eventID);
+		if (!isRemoved)
+			return;
+		removed.add(eventID);
+		if (removed.size() > maxRemoved) {
+			String oldest = removed.iterator().next();
+			removed.remove(oldest);
+			Long oldestSeq = seqs.remove(oldest);
+			events.remove(oldestSeq);
+			types.remove(oldest);
+			minSeq = Math.max(minSeq, oldestSeq);
+		}
+	}
+
+	/**
+	 * @param epoch epoch the follower is at
+	 * @param from  last sequence number the follower applied
+	 * @return true if the follower has to drop its copy and start over from 0
+	 */
+	public synchronized boolean mustReload(long epoch, long from) {
+		return epoch != this.epoch || from < minSeq || from > seq;
+	}
+
+	/**
+	 * gets the events changed after a sequence number
+	 *
+	 * @param from
+	 * @param max  most events returned
+	 * @return {seq, eventID, eventType} per event, in the order they changed
+	 */
+	public synchronized ArrayList<String[]> after(long from, int max) {
+		ArrayList<String[]> changed = new ArrayList<String[]>();
+		Iterator<Map.Entry<Long, String>> it = events.tailMap(from, false).entrySet().iterator();
+		while (it.hasNext() && changed.size() < max) {
+			Map.Entry<Long, String> eventPair = it.next();
+			String eventID = eventPair.getValue();
+			changed.add(new String[] { String.valueOf(eventPair.getKey()), eventID, types.get(eventID) });
+		}
+		return changed;
+	}
+
+	/**
+	 * remembers how far a follower is, for the report
+	 *
+	 * @param follower address of the follower
+	 * @param from     last sequence number it applied
+	 */
+	public synchronized void pulled(String follower, long from) {
+		Position position = followers.get(follower);
+		if (position == null) {
+			position = new Position();
+			followers.put(follower, position);
+		}
+		position.seq = from;
+		position.time = System.currentTimeMillis();
+	}
+
+	public synchronized String report() {
+		String report = "\tseq=" + seq + " events=" + events.size() + " removed=" + removed.size() + "\n";
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Position>> it = followers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Position> followerPair = it.next();
+			Position position = followerPair.getValue();
+			report += "\tfollower " + followerPair.getKey() + " lag=" + Math.max(0, seq - position.seq)
+					+ " changes, last pull " + (now - position.time) + " ms ago\n";
+		}
+		return report;
+	}
+}
@@ -0,0 +1,87 @@
+package serverside;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Totals of the events of a city per event type: number of events, seats
+ * offered, seats taken (booked or held), seats remaining and sold out events.
+ * They are kept up to date from the changes of single events, so reading them
+ * never goes through the catalog.
+ *
+ * The last counts seen of every event are kept, a change adds the difference
+ * to the totals. The counts of an event are read under the lock of its type,
+ * so two changes of the same event are counted in the order they were read.
+ */
+public class OccupancyCounters {
+
+	private class Totals {
+		long events;
+		long offered;
+		long taken;
+		long soldOut;
+		// last {capacity, taken} seen of every event of the type
+		HashMap<String, int[]> seen = new HashMap<String, int[]>();
+	}
+
+	private HashMap<String, Totals> types;
+
+	/**
+	 * @param eventTypes the event types of the catalog
+	 */
+	public OccupancyCounters(Collection<String> eventTypes) {
+		types = new HashMap<String, Totals>();
+		Iterator<String> it = eventTypes.iterator();
+		while (it.hasNext())
+			types.put(it.next(), new Totals());
+	}
+
+	/**
+	 * counts the current state of an event in place of the last one seen
+	 *
+	 * @param eventID
+	 * @param eventType
+	 * @param festival  the event, or null if it was removed
+	 */
+	public void update(String eventID, String eventType, Festival festival) {
+		Totals totals = types.get(eventType);
+		if (totals == null)
+			return;
+		synchronized (totals) {
+			int[] last = totals.seen.remove(eventID);
+			if (last != null) {
+				totals.events--;
+				totals.offered -= last[0];
+				totals.taken -= last[1];
+				if (last[1] >= last[0])
+					totals.soldOut--;
+			}
+			if (festival == null)
+				return;
+			int capacity = festival.getCapacity();
+			int taken = capacity - festival.getRemaining();
+			totals.seen.put(eventID, new int[] { capacity, taken });
+			totals.events++;
+			totals.offered += capacity;
+			totals.taken += taken;
+			if (taken >= capacity)
+				totals.soldOut++;
+		}
+	}
+
+	/**
+	 * @param eventType
+	 * @return "eventType;events;offered;taken;remaining;soldOut", or null if
+	 *         the type does not exist
+	 */
+	public String getSummary(String eventType) {
+		Totals totals = types.get(eventType);
+		if (totals == null)
+			return null;
+		synchronized (totals) {
+			return eventType + ";" + totals.events + ";" + totals.offered + ";" + totals.taken + ";"
+					+ (totals.offered - totals.taken) + ";" + totals.soldOut;
+		}
+	}
+}
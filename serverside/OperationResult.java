@@ -0,0 +1,23 @@
+package serverside;
+
+/**
+ * Outcome of an operation: whether it succeeded and the message sent back to
+ * the user.
+ */
+public class OperationResult {
+	private boolean success;
+	private String message;
+
+	public OperationResult(boolean success, String message) {
+		this.success = success;
+		this.message = message;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+}
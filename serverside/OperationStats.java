@@ -0,0 +1,69 @@
+package serverside;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts and latency histograms per operation, split between successes and
+ * failures.
+ */
+public class OperationStats {
+
+	private class Operation {
+		LatencyHistogram success = new LatencyHistogram();
+		LatencyHistogram failure = new LatencyHistogram();
+	}
+
+	private ConcurrentHashMap<String, Operation> operations;
+
+	public OperationStats() {
+		operations = new ConcurrentHashMap<String, Operation>();
+	}
+
+	/**
+	 * records one call of an operation
+	 *
+	 * @param operation
+	 * @param success
+	 * @param startNanos System.nanoTime() when the operation started
+	 */
+	public void record(String operation, boolean success, long startNanos) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		Operation stats = operations.computeIfAbsent(operation, name -> new Operation());
+		if (success)
+			stats.success.record(micros);
+		else
+			stats.failure.record(micros);
+	}
+
+	public LatencyHistogram getSuccessHistogram(String operation) {
+		Operation stats = operations.get(operation);
+		return stats == null ? null : stats.success;
+	}
+
+	/**
+	 * one line per operation starting with the prefix, latencies in
+	 * microseconds
+	 *
+	 * @param prefix empty for all operations
+	 * @return
+	 */
+	public String report(String prefix) {
+		String result = "";
+		Iterator<Map.Entry<String, Operation>> it = new TreeMap<String, Operation>(operations).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Operation> operationPair = it.next();
+			String name = operationPair.getKey();
+			if (!name.startsWith(prefix))
+				continue;
+			Operation stats = operationPair.getValue();
+			result += "\t" + name + " ok " + stats.success.summary();
+			if (stats.failure.getCount() > 0)
+				result += " | failed " + stats.failure.summary();
+			result += "\n";
+		}
+		return result;
+	}
+}
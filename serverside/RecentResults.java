@@ -0,0 +1,110 @@
+package serverside;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the results of recent requests, so a request sent again
+ * with the same idempotency key gets the first result instead of being
+ * applied twice. The keys are split over segments, each a small LRU map with
+ * its own lock, and an entry is forgotten once it is older than the time to
+ * live or pushed out by newer ones.
+ */
+public class RecentResults<V> {
+
+	private static final int SEGMENTS = 16;
+
+	private class Entry {
+		V value;
+		long expires;
+	}
+
+	private LinkedHashMap<String, Entry>[] segments;
+	private long ttl;
+
+	/**
+	 * @param maxEntries how many results are kept at most
+	 * @param ttl        milliseconds a result is kept
+	 */
+	@SuppressWarnings("unchecked")
+	public RecentResults(int maxEntries, long ttl) {
+		this.ttl = ttl;
+		int segmentSize = Math.max(1, maxEntries / SEGMENTS);
+		segments = (LinkedHashMap<String, Entry>[]) new LinkedHashMap<?, ?>[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					return size() > segmentSize || eldest.getValue().expires < System.currentTimeMillis();
+				}
+			};
+		}
+	}
+
+	private LinkedHashMap<String, Entry> segment(String key) {
+		return segments[Math.floorMod(key.hashCode(), SEGMENTS)];
+	}
+
+	/**
+	 * @param key
+	 * @return the result kept for the key, or null if there is none
+	 */
+	public V get(String key) {
+		LinkedHashMap<String, Entry> segment = segment(key);
+		synchronized (segment) {
+			Entry entry = segment.get(key);
+			if (entry == null)
+				return null;
+			if (entry.expires < System.currentTimeMillis()) {
+				segment.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+
+	/**
+	 * keeps the result of a key, unless one is already kept
+	 *
+	 * @param key
+	 * @param value
+	 * @return the result already kept for the key, or null if value was kept
+	 */
+	public V putIfAbsent(String key, V value) {
+		LinkedHashMap<String, Entry> segment = segment(key);
+		synchronized (segment) {
+			Entry entry = segment.get(key);
+			if (entry != null && entry.expires >= System.currentTimeMillis())
+				return entry.value;
+			entry = new Entry();
+			entry.value = value;
+			entry.expires = System.currentTimeMillis() + ttl;
+			segment.put(key, entry);
+			return null;
+		}
+	}
+
+	public void put(String key, V value) {
+		LinkedHashMap<String, Entry> segment = segment(key);
+		synchronized (segment) {
+			Entry entry = new Entry();
+			entry.value = value;
+			entry.expires = System.currentTimeMillis() + ttl;
+			segment.put(key, entry);
+		}
+	}
+
+	/**
+	 * forgets the result of a key if it is still value
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public void remove(String key, V value) {
+		LinkedHashMap<String, Entry> segment = segment(key);
+		synchronized (segment) {
+			Entry entry = segment.get(key);
+			if (entry != null && entry.value == value)
+				segment.remove(key);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package serverside;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bookings of users in the cities other than their own, so the weekly limit
+ * of a user counts the events booked in every other city without asking them
+ * all on each reservation.
+ *
+ * The home city of a user keeps the full list. The other cities tell it when
+ * they add or remove a booking of the user, and it sends the new list back to
+ * them, which update their copy if they have one:
+ *
+ * <pre>
+ * W + &lt;participantID&gt; &lt;eventID&gt;      booking added, to the home city
+ * W - &lt;participantID&gt; &lt;eventID&gt;      booking removed, to the home city
+ * W = &lt;participantID&gt; &lt;eventID&gt;,...   new list, from the home city
+ * W ? &lt;participantID&gt;                the list, answered "W &lt;eventID&gt;,..."
+ * </pre>
+ *
+ * The added and removed bookings are sent with an idempotency key and sent
+ * again until the home city answers. The home city does not trust its list
+ * for long though: it is lost on a restart, and an update can still be lost
+ * when the home city stays down longer than the retries. The home city
+ * rebuilds the list from the schedules of the other cities the first time it
+ * is asked for it and again once it is older than a time to live. Until the
+ * first rebuild is done it answers "W !", and the city asking reads the
+ * schedules itself.
+ *
+ * A city without a copy asks the home city for it. The copies are kept in a
+ * bounded cache and expire, so a copy that missed a "W =" is corrected later.
+ */
+public class RemoteBookings {
+
+	private class Bookings {
+		TreeSet<String> events = new TreeSet<String>();
+		// when the list was last rebuilt from the other cities, 0 if never
+		long rebuilt;
+		// changes received while a rebuild runs, "+eventID" or "-eventID", they
+		// are applied again on top of it. null when no rebuild runs
+		ArrayList<String> pending;
+	}
+
+	// bookings in the other cities of the users of this city
+	private ConcurrentHashMap<String, Bookings> home;
+	private long homeTtl;
+	// copies of the lists of users of other cities
+	private RecentResults<String> cache;
+
+	/**
+	 * @param cacheSize how many copies are kept at most
+	 * @param cacheTtl  milliseconds a copy is kept
+	 * @param homeTtl   milliseconds before the list of a user of this city is
+	 *                  rebuilt
+	 */
+	public RemoteBookings(int cacheSize, long cacheTtl, long homeTtl) {
+		this.home = new ConcurrentHashMap<String, Bookings>();
+		this.homeTtl = homeTtl;
+		this.cache = new RecentResults<String>(cacheSize, cacheTtl);
+	}
+
+	/**
+	 * adds or removes a booking of a user of this city
+	 *
+	 * @param participantID
+	 * @param eventID
+	 * @param booked        true if it was added
+	 * @return the new list
+	 */
+	public String change(String participantID, String eventID, boolean booked) {
+		Bookings bookings = home.computeIfAbsent(participantID, p -> new Bookings());
+		synchronized (bookings) {
+			if (booked)
+				bookings.events.add(eventID);
+			else
+				bookings.events.remove(eventID);
+			if (bookings.pending != null)
+				bookings.pending.add((booked ? "+" : "-") + eventID);
+			return String.join(",", bookings.events);
+		}
+	}
+
+	/**
+	 * @param participantID a user of this city
+	 * @return the events of the user in the other cities, comma separated, or
+	 *         null if the list was never rebuilt
+	 */
+	public String getHome(String participantID) {
+		Bookings bookings = home.get(participantID);
+		if (bookings == null)
+			return null;
+		synchronized (bookings) {
+			if (bookings.rebuilt == 0)
+				return null;
+			return String.join(",", bookings.events);
+		}
+	}
+
+	/**
+	 * check if the list of a user of this city has to be rebuilt, and marks
+	 * the rebuild as started
+	 *
+	 * @param participantID
+	 * @return true if the caller has to rebuild it and call rebuilt()
+	 */
+	public boolean startRebuild(String participantID) {
+		Bookings bookings = home.computeIfAbsent(participantID, p -> new Bookings());
+		synchronized (bookings) {
+			if (bookings.pending != null
+					|| (bookings.rebuilt != 0 && System.currentTimeMillis() - bookings.rebuilt < homeTtl))
+				return false;
+			bookings.pending = new ArrayList<String>();
+			return true;
+		}
+	}
+
+	/**
+	 * replaces the list of a user of this city by the one read from the other
+	 * cities, with the changes received in the meantime
+	 *
+	 * @param participantID
+	 * @param events        the events, or null if a city could not be asked
+	 */
+	public void rebuilt(String participantID, Collection<String> events) {
+		Bookings bookings = home.get(participantID);
+		if (bookings == null)
+			return;
+		synchronized (bookings) {
+			if (events != null) {
+				bookings.events = new TreeSet<String>(events);
+				for (int i = 0; i < bookings.pending.size(); i++) {
+					String change = bookings.pending.get(i);
+					if (change.charAt(0) == '+')
+						bookings.events.add(change.substring(1));
+					else
+						bookings.events.remove(change.substring(1));
+				}
+				bookings.rebuilt = System.currentTimeMillis();
+			}
+			bookings.pending = null;
+		}
+	}
+
+	/**
+	 * @param participantID a user of another city
+	 * @return the copy of the list of the user, or null if there is none
+	 */
+	public String getCached(String participantID) {
+		return cache.get(participantID);
+	}
+
+	public void putCached(String participantID, String events) {
+		cache.put(participantID, events);
+	}
+
+	/**
+	 * replaces the copy of the list of a user, if there is one
+	 *
+	 * @param participantID
+	 * @param events
+	 */
+	public void updateCached(String participantID, String events) {
+		if (cache.get(participantID) != null)
+			cache.put(participantID, events);
+	}
+}
@@ -0,0 +1,145 @@
+package serverside;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Combines the concurrent reservations of an event. Every caller queues its
+ * reservation; whichever caller gets the event's combiner lock takes all the
+ * queued reservations and applies them against the capacity in one pass,
+ * then completes the others' results. A popular event then changes hands
+ * once per batch instead of once per reservation. The combiner keeps taking
+ * batches until the queue is empty, and the queue of an event is dropped when
+ * nothing is left in it.
+ */
+public class ReservationCombiner {
+
+	public static final int ADDED = Festival.BOOKED;
+	public static final int ALREADY_BOOKED = Festival.ALREADY_BOOKED;
+	public static final int FULL = Festival.FULL;
+
+	private class Reservation {
+		Festival festival;
+		String participantID;
+		CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+	}
+
+	private class EventQueue {
+		ConcurrentLinkedQueue<Reservation> pending = new ConcurrentLinkedQueue<Reservation>();
+		ReentrantLock combiner = new ReentrantLock();
+	}
+
+	private ConcurrentHashMap<String, EventQueue> queues;
+	// runs a batch of an event the same way a single change of the event runs
+	private BiFunction<String, Supplier<int[]>, int[]> onEvent;
+	// true when the calling thread already holds the lock batches run under, it
+	// must not wait for another combiner that needs that lock
+	private BooleanSupplier holdsEventLock;
+
+	/**
+	 * @param onEvent        runs the batch of an event id under the event's lock
+	 *                       or on its shard
+	 * @param holdsEventLock tells if the calling thread holds the lock onEvent
+	 *                       takes
+	 */
+	public ReservationCombiner(BiFunction<String, Supplier<int[]>, int[]> onEvent, BooleanSupplier holdsEventLock) {
+		this.queues = new ConcurrentHashMap<String, EventQueue>();
+		this.onEvent = onEvent;
+		this.holdsEventLock = holdsEventLock;
+	}
+
+	/**
+	 * books a user to an event if the user is not booked yet, the event is not
+	 * full and nobody is waiting for a seat
+	 *
+	 * @param eventID
+	 * @param festival
+	 * @param participantID
+	 * @return ADDED, ALREADY_BOOKED or FULL
+	 */
+	public int reserve(String eventID, Festival festival, String participantID) {
+		Reservation reservation = new Reservation();
+		reservation.festival = festival;
+		reservation.participantID = participantID;
+		if (holdsEventLock.getAsBoolean()) {
+			ArrayList<Reservation> batch = new ArrayList<Reservation>();
+			batch.add(reservation);
+			return apply(eventID, batch)[0];
+		}
+		EventQueue queue = queues.computeIfAbsent(eventID, id -> new EventQueue());
+		queue.pending.add(reservation);
+		// a queue dropped after it was looked up is still drained here
+		drain(eventID, queue);
+		try {
+			return reservation.result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a reservation", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * combines the queued reservations of an event until none is left, unless
+	 * another caller is already doing it. A reservation queued while the
+	 * combiner lets go of the lock is seen by the check after the unlock.
+	 *
+	 * @param eventID
+	 * @param queue
+	 */
+	private void drain(String eventID, EventQueue queue) {
+		while (!queue.pending.isEmpty() && queue.combiner.tryLock()) {
+			try {
+				while (!queue.pending.isEmpty())
+					combine(eventID, queue);
+				queues.remove(eventID, queue);
+			} finally {
+				queue.combiner.unlock();
+			}
+		}
+	}
+
+	private void combine(String eventID, EventQueue queue) {
+		ArrayList<Reservation> batch = new ArrayList<Reservation>();
+		Reservation reservation = queue.pending.poll();
+		while (reservation != null) {
+			batch.add(reservation);
+			reservation = queue.pending.poll();
+		}
+		if (batch.isEmpty())
+			return;
+		int[] results;
+		try {
+			results = apply(eventID, batch);
+		} catch (RuntimeException e) {
+			// every caller of the batch gets the error, the combiner goes on
+			// with the next batch
+			for (int i = 0; i < batch.size(); i++)
+				batch.get(i).result.completeExceptionally(e);
+			return;
+		}
+		for (int i = 0; i < batch.size(); i++)
+			batch.get(i).result.complete(results[i]);
+	}
+
+	private int[] apply(String eventID, ArrayList<Reservation> batch) {
+		return onEvent.apply(eventID, () -> {
+			int[] outcomes = new int[batch.size()];
+			// checked and booked under the lock of the event, an exchange can
+			// take a seat without going through here
+			for (int i = 0; i < batch.size(); i++)
+				outcomes[i] = batch.get(i).festival.tryBook(batch.get(i).participantID);
+			return outcomes;
+		});
+	}
+}
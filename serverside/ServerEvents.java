@@ -0,0 +1,105 @@
+package serverside;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events of the server. They cost close to nothing while the
+ * recording does not enable them. The festival.jfc profile next to this file
+ * enables all of them:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=settings=serverside/festival.jfc,filename=mtl.jfr serverside.MTLServer
+ * </pre>
+ */
+public class ServerEvents {
+
+	/**
+	 * the lock (or shard) an event is changed under, from the moment it is
+	 * asked for until it is released
+	 */
+	@Name("serverside.EventLock")
+	@Label("Event Lock")
+	@Category("Festival Server")
+	@Description("Wait for and hold of the lock, or shard, an event is changed under")
+	@StackTrace(false)
+	public static class EventLock extends Event {
+		@Label("Server")
+		public String server;
+
+		@Label("Operation")
+		public String operation;
+
+		@Label("Event ID")
+		public String eventID;
+
+		@Label("Sharded")
+		public boolean sharded;
+
+		@Label("Wait Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long waitTime;
+
+		@Label("Hold Time")
+		@Timespan(Timespan.NANOSECONDS)
+		public long holdTime;
+	}
+
+	/**
+	 * an entry written to the server log
+	 */
+	@Name("serverside.LogWrite")
+	@Label("Log Write")
+	@Category("Festival Server")
+	@Description("Entry written to the server log")
+	@StackTrace(false)
+	public static class LogWrite extends Event {
+		@Label("Server")
+		public String server;
+
+		@Label("Request Type")
+		public String requestType;
+
+		@Label("Success")
+		public boolean success;
+	}
+
+	/**
+	 * a datagram sent to another city and its reply
+	 */
+	@Name("serverside.DatagramRoundTrip")
+	@Label("Datagram Round Trip")
+	@Category("Festival Server")
+	@Description("Request sent to another city, until its reply or the last timeout")
+	@StackTrace(false)
+	public static class DatagramRoundTrip extends Event {
+		@Label("Server")
+		public String server;
+
+		@Label("City")
+		public String city;
+
+		@Label("Opcode")
+		public String opcode;
+
+		@Label("Attempts")
+		public int attempts;
+
+		@Label("Bytes Sent")
+		@DataAmount
+		public long bytesSent;
+
+		@Label("Bytes Received")
+		@DataAmount
+		public long bytesReceived;
+
+		@Label("Timed Out")
+		public boolean timedOut;
+	}
+}
@@ -1,41 +1,265 @@
 package serverside;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+import javax.annotation.Resource;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import javax.jws.soap.SOAPBinding.Style;
+import javax.xml.ws.WebServiceContext;
+import javax.xml.ws.handler.MessageContext;
 
 @WebService(endpointInterface = "serverside.ServerOperationsInterface")
 @SOAPBinding(style=Style.RPC)
 public class ServerOperationsImpl implements ServerOperationsInterface {
 
+	// longest reply line of a batch item with IDs of the usual length, the
+	// same day refusal
+	private static final int MAX_BATCH_REPLY_LINE = 120;
+	private static final int MAX_BATCH_DATAGRAM_ITEMS = 990 / MAX_BATCH_REPLY_LINE;
+	private static final int IMPORT_CHUNK_SIZE = 10000;
+	// a page of a snapshot fits in the 1000 byte buffer of the replica
+	private static final int MAX_SNAPSHOT_DATAGRAM = 990;
+	private static final int MAX_EXCHANGE_ATTEMPTS = 32;
+	// a follower reads its replies with a buffer of the largest datagram
+	private static final int MAX_FOLLOWER_DATAGRAM = 60000;
+	private static final int MAX_FOLLOWER_EVENTS = 1000;
+	// most slots a search returns, so the reply of a city fits in a datagram
+	private static final int MAX_FIND_COUNT = 50;
+
 	public String serverName;
 	public File logFile;
-	public HashMap<String, HashMap<String, Festival>> database;
+	// the events by event type, read by the request threads without a lock
+	public HashMap<String, ConcurrentHashMap<String, Festival>> database;
+	// the events of the database in date order
+	public EventCalendar calendar;
+	// past events taken out of the database
+	public EventArchive archive;
+	public AvailabilityCache availabilityCache;
+	public boolean pushInvalidations;
+	public boolean replicationEnabled;
+	public AvailabilityPublisher availabilityPublisher;
+	public AvailabilityReplica availabilityReplica;
+	// front-ends the seat count changes are pushed to
+	public AvailabilitySubscriptions subscriptions;
+	// latencies of the operations and of the requests of other cities
+	public OperationStats stats;
+	public TransportStats transportStats;
+	public Tracer tracer;
+	// rate limits of the participants and other cities, and the limit of
+	// requests running at once
+	public AdmissionControl admission;
+	// gives access to the HTTP headers of the SOAP request being handled
+	@Resource
+	private WebServiceContext wsContext;
+	// milliseconds to wait for the reply of another city, and how many times a
+	// request is sent again
+	private int udpTimeout;
+	private int udpRetries;
+	// read-only requests to other cities currently waiting for a reply
+	private ConcurrentHashMap<String, CompletableFuture<String>> inFlightQueries;
+	// threads asking the other cities at the same time, and how long a request
+	// waits for their replies
+	private ExecutorService peerQueries;
+	private long peerTimeout;
+	// guards adding and removing events, which may run on different shards
+	private Object catalogLock;
+	// owner threads of the events, null when the server lock is used instead
+	private EventShards shards;
+	// applies the concurrent reservations of an event in batches
+	private ReservationCombiner reservationCombiner;
+	// seats held until confirmed, by "participantID eventID", and the wheel
+	// expiring them
+	private ConcurrentHashMap<String, TimingWheel.Timeout> seatHolds;
+	private TimingWheel holdExpiry;
+	private long holdTtl;
+	// messages for the users of this city, like a seat given from a waitlist
+	private ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> notifications;
+	// results of the recent client requests by "operation participantID
+	// idempotency key", and replies to the recent datagrams of other cities by
+	// "city key", so a request sent again is not applied twice
+	private RecentResults<CompletableFuture<OperationResult>> recentResults;
+	private RecentResults<String> recentReplies;
+	// keys of the datagrams this city sends, unique across restarts
+	private String requestKeyPrefix;
+	private AtomicLong requestKeys;
+	// milliseconds between the attempts to learn the result of an exchange
+	// the other city did not answer
+	private long exchangeRetryInterval;
+	private long exchangeRetryLimit;
+	private ScheduledExecutorService exchangeRetries;
+	// order in which the events changed, read by the followers of this city
+	public MutationLog mutationLog;
+	// seats offered, taken and remaining per event type
+	public OccupancyCounters occupancy;
+	// bookings of users in the cities other than their own, for the weekly
+	// limit
+	public RemoteBookings remoteBookings;
+	// sends the added and removed bookings to the home cities, one at a time
+	// so they arrive in order
+	private ExecutorService bookingUpdates;
+	// thread handling the requests of the other cities, it never waits on
+	// another city itself
+	private volatile Thread peerThread;
+	// true when this is the read-only copy of a city kept by a Follower
+	public boolean follower;
 
 	public ServerOperationsImpl(String serverName, HashMap<String, HashMap<String, Festival>> db) throws Exception {
+		this(serverName, db, false);
+	}
+
+	/**
+	 * @param serverName the city
+	 * @param db         the events by event type
+	 * @param follower   true for the copy of a city kept by a Follower, which
+	 *                   does not publish anything to the other cities
+	 * @throws Exception
+	 */
+	public ServerOperationsImpl(String serverName, HashMap<String, HashMap<String, Festival>> db, boolean follower)
+			throws Exception {
 		super();
 		this.serverName = serverName;
-		database = new HashMap<>(db);
+		this.follower = follower;
+		// the files of a follower do not mix with those of the city it follows
+		String fileName = follower ? serverName + "-follower" : serverName;
+		database = new HashMap<String, ConcurrentHashMap<String, Festival>>();
+		Iterator<Map.Entry<String, HashMap<String, Festival>>> dbIt = db.entrySet().iterator();
+		while (dbIt.hasNext()) {
+			Map.Entry<String, HashMap<String, Festival>> dbPair = dbIt.next();
+			database.put(dbPair.getKey(), new ConcurrentHashMap<String, Festival>(dbPair.getValue()));
+		}
+		calendar = new EventCalendar(database.keySet());
+		mutationLog = new MutationLog(Integer.getInteger("follower.maxRemoved", 10000));
+		occupancy = new OccupancyCounters(database.keySet());
+		Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> typeIt = database.entrySet().iterator();
+		while (typeIt.hasNext()) {
+			Map.Entry<String, ConcurrentHashMap<String, Festival>> typePair = typeIt.next();
+			String eventType = typePair.getKey();
+			Iterator<Map.Entry<String, Festival>> eventIt = typePair.getValue().entrySet().iterator();
+			while (eventIt.hasNext()) {
+				Map.Entry<String, Festival> eventPair = eventIt.next();
+				String eventID = eventPair.getKey();
+				calendar.add(eventID, eventType);
+				mutationLog.changed(eventID, eventType, false);
+				occupancy.update(eventID, eventType, eventPair.getValue());
+			}
+		}
+		stats = new OperationStats();
+		transportStats = new TransportStats();
+		tracer = new Tracer(fileName + "-trace", Boolean.parseBoolean(System.getProperty("tracing.enabled", "false")),
+				Integer.getInteger("tracing.maxQueued", 10000));
+		admission = new AdmissionControl(Double.parseDouble(System.getProperty("admission.participant.rate", "10")),
+				Double.parseDouble(System.getProperty("admission.participant.burst", "20")),
+				Double.parseDouble(System.getProperty("admission.city.rate", "500")),
+				Double.parseDouble(System.getProperty("admission.city.burst", "1000")),
+				Integer.getInteger("admission.maxRunning", 32));
+		udpTimeout = Integer.getInteger("udp.timeout", 2000);
+		udpRetries = Integer.getInteger("udp.retries", 2);
+		transportStats.startSummaries(fileName + "-transport-log", Long.getLong("transport.summaryInterval", 60000));
+		inFlightQueries = new ConcurrentHashMap<String, CompletableFuture<String>>();
+		peerQueries = createPeerExecutor();
+		// every attempt of a city, and one more timeout for the queue
+		peerTimeout = (long) (udpRetries + 2) * udpTimeout;
+		notifications = new ConcurrentHashMap<String, ConcurrentLinkedQueue<String>>();
+		remoteBookings = new RemoteBookings(Integer.getInteger("quota.cacheSize", 100000),
+				Long.getLong("quota.cacheTtl", 60000), Long.getLong("quota.homeTtl", 600000));
+		bookingUpdates = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, serverName + "-booking-updates");
+			thread.setDaemon(true);
+			return thread;
+		});
+		int idempotencyEntries = Integer.getInteger("idempotency.maxEntries", 100000);
+		long idempotencyTtl = Long.getLong("idempotency.ttl", 600000);
+		recentResults = new RecentResults<CompletableFuture<OperationResult>>(idempotencyEntries, idempotencyTtl);
+		recentReplies = new RecentResults<String>(idempotencyEntries, idempotencyTtl);
+		requestKeyPrefix = Long.toString(System.currentTimeMillis(), 36);
+		requestKeys = new AtomicLong();
+		exchangeRetryInterval = Long.getLong("exchange.retryInterval", 5000);
+		exchangeRetryLimit = Math.max(1, idempotencyTtl / exchangeRetryInterval);
+		exchangeRetries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, serverName + "-exchange-retries");
+			thread.setDaemon(true);
+			return thread;
+		});
+		seatHolds = new ConcurrentHashMap<String, TimingWheel.Timeout>();
+		holdTtl = Long.getLong("holds.ttl", 60000);
+		holdExpiry = new TimingWheel(serverName + "-hold-expiry", Long.getLong("holds.tick", 100),
+				Integer.getInteger("holds.wheelSize", 512), timeout -> expireHold(timeout));
+		holdExpiry.start();
+		catalogLock = new Object();
+		int shardCount = Integer.getInteger("shards", 0);
+		if (shardCount > 0)
+			shards = new EventShards(serverName, shardCount);
+		reservationCombiner = new ReservationCombiner((eventID, batch) -> onEvent("reserveTicket", eventID, batch),
+				() -> shards == null && Thread.holdsLock(this));
+		availabilityCache = new AvailabilityCache(Long.getLong("availability.cache.ttl", 2000),
+				Long.getLong("availability.cache.maxStale", 10000));
+		pushInvalidations = !follower
+				&& Boolean.parseBoolean(System.getProperty("availability.cache.pushInvalidations", "true"));
+		replicationEnabled = !follower && Boolean.parseBoolean(System.getProperty("replication.enabled", "true"));
+		if (replicationEnabled) {
+			availabilityPublisher = new AvailabilityPublisher(serverName, Long.getLong("replication.interval", 200),
+					Long.getLong("replication.heartbeat", 5000), (eventID, eventType) -> {
+						Festival festival = getEvent(eventID, eventType);
+						return festival == null ? -1 : festival.getRemaining();
+					}, requestString -> notifyOtherCities(requestString));
+			availabilityReplica = new AvailabilityReplica(getOtherCities(),
+					database.keySet().toArray(new String[0]), (city, requestString) -> queryCityShared(city, requestString),
+					availabilityCache);
+			availabilityPublisher.start();
+		}
+		subscriptions = new AvailabilitySubscriptions(serverName, Long.getLong("subscriptions.interval", 500),
+				Long.getLong("subscriptions.lease", 600000), (eventID, eventType) -> {
+					Festival festival = getEvent(eventID, eventType);
+					return festival == null ? -1 : festival.getRemaining();
+				});
+		subscriptions.start();
+		archive = new EventArchive(serverName + "-archive");
+		if (!follower && Boolean.parseBoolean(System.getProperty("archive.enabled", "false")))
+			startArchiver(Long.getLong("archive.interval", 3600000), Integer.getInteger("archive.retentionDays", 0));
 		try {
-			logFile = new File(serverName + "-log");
+			logFile = new File(fileName + "-log");
 			if (logFile.createNewFile()) {
 				System.out.println(logFile.getName() + " file created.");
 			} else {
@@ -50,6 +274,8 @@ public class ServerOperationsImpl implements ServerOperationsInterface {
 	@Override
 	public String addReservationSlot(String eventID, String eventType, int capacity) {
 		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("addReservationSlot", getTraceId(), "client");
 		boolean success;
 		String resultString;
 		if (!checkEventType(eventType)) {
@@ -58,30 +284,30 @@ public class ServerOperationsImpl implements ServerOperationsInterface {
 		} else if (!checkIDLength(eventID)) {
 			success = false;
 			resultString = "Invalid event ID";
-		} else if (!checkCity(eventID)) {
+		} else if (!checkCity(eventID) || !getEventCity(eventID).equals(serverName)) {
 			success = false;
 			resultString = "Invalid city";
 		} else if (!checkTime(eventID)) {
 			success = false;
 			resultString = "Invalid time of day";
-		} else if (!checkDate(eventID)) {
+		} else if (!checkDate(eventID) || EventCalendar.getKey(eventID) < 0) {
+			// day or month 00 pass checkDate but are not dates
 			success = false;
 			resultString = "Invalid date";
 		} else {
-			Festival check = null;
-			Iterator it = database.entrySet().iterator();
-			// checks if the eventID is unique across the event types
-			while (it.hasNext()) {
-				Map.Entry eventPair = (Map.Entry) it.next();
-				check = ((HashMap<String, Festival>) eventPair.getValue()).get(eventID);
-				if (check != null)
-					break;
-			}
-			if (check == null) {
-				HashMap<String, Festival> event = database.get(eventType);
-				synchronized (this) {
-					Festival result = event.put(eventID, new Festival(capacity));
+			ConcurrentHashMap<String, Festival> event = database.get(eventType);
+			boolean added = onEvent("addReservationSlot", eventID, () -> {
+				synchronized (catalogLock) {
+					// checks if the eventID is unique across the event types
+					if (getEvent(eventID) != null)
+						return false;
+					event.put(eventID, new Festival(capacity));
+					calendar.add(eventID, eventType);
+					return true;
 				}
+			});
+			if (added) {
+				availabilityChanged(eventID, eventType);
 				success = true;
 				resultString = "Added reservation slot " + eventID + " to database successfully";
 			} else {
@@ -91,12 +317,165 @@ public class ServerOperationsImpl implements ServerOperationsInterface {
 		}
 		String[] parameters = { "eventID", "eventType", "capacity" };
 		updateLog(requestTime, "addReservationsSlot", parameters, success, resultString);
+		stats.record("addReservationSlot", success, start);
+		tracer.finish("addReservationSlot");
+		return resultString;
+	}
+
+	@Override
+	public String importReservationSlots(String slots) {
+		return importReservationSlots(new BufferedReader(new StringReader(slots)), "importReservationSlots");
+	}
+
+	/**
+	 * imports the reservation slots of a file, see importReservationSlots
+	 * 
+	 * @param fileName
+	 * @return
+	 */
+	public String importReservationSlotsFile(String fileName) {
+		try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+			return importReservationSlots(reader, "importReservationSlotsFile");
+		} catch (IOException e) {
+			return "Could not read " + fileName + ": " + e.getMessage();
+		}
+	}
+
+	/**
+	 * adds the reservation slots read from lines of "eventID,eventType,capacity".
+	 * The lines are read in chunks, each chunk is parsed in parallel, checked
+	 * against the slots already in the database and earlier in the input, and
+	 * inserted under one lock. One log record is written for the whole import.
+	 * 
+	 * @param reader
+	 * @param requestType name of the request in the log
+	 * @return summary of the import
+	 */
+	private String importReservationSlots(BufferedReader reader, String requestType) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin(requestType, getTraceId(), "client");
+		int imported = 0;
+		int duplicates = 0;
+		int invalid = 0;
+		String errors = "";
+		int lineNumber = 0;
+
+		// every event ID already used, across the event types
+		HashSet<String> eventIDs = new HashSet<String>();
+		synchronized (catalogLock) {
+			Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, ConcurrentHashMap<String, Festival>> eventPair = it.next();
+				eventIDs.addAll(eventPair.getValue().keySet());
+			}
+		}
+
+		try {
+			ArrayList<String> chunk = new ArrayList<String>();
+			String line = reader.readLine();
+			while (line != null || !chunk.isEmpty()) {
+				if (line != null)
+					chunk.add(line);
+				if (chunk.size() < IMPORT_CHUNK_SIZE && line != null) {
+					line = reader.readLine();
+					continue;
+				}
+				int firstLine = lineNumber + 1;
+				lineNumber += chunk.size();
+				String[][] checked = chunk.parallelStream().map(slot -> checkSlot(slot)).toArray(String[][]::new);
+				chunk.clear();
+
+				ArrayList<String[]> accepted = new ArrayList<String[]>();
+				for (int i = 0; i < checked.length; i++) {
+					if (checked[i] == null)
+						continue;
+					String[] fields = checked[i];
+					if (fields.length != 3) {
+						invalid++;
+						if (errors.length() < 500)
+							errors += "\tLine " + (firstLine + i) + ": " + fields[0] + "\n";
+					} else if (!eventIDs.add(fields[0])) {
+						duplicates++;
+					} else {
+						accepted.add(fields);
+					}
+				}
+				synchronized (catalogLock) {
+					for (int i = 0; i < accepted.size(); i++) {
+						String[] fields = accepted.get(i);
+						// added by addReservationSlot since the import started
+						if (getEvent(fields[0]) != null) {
+							duplicates++;
+							accepted.remove(i--);
+							continue;
+						}
+						database.get(fields[1]).put(fields[0], new Festival(Integer.parseInt(fields[2])));
+						calendar.add(fields[0], fields[1]);
+					}
+				}
+				for (int i = 0; i < accepted.size(); i++)
+					availabilityChanged(accepted.get(i)[0], accepted.get(i)[1]);
+				imported += accepted.size();
+				if (line != null)
+					line = reader.readLine();
+			}
+		} catch (IOException e) {
+			errors += "\tRead error after line " + lineNumber + ": " + e.getMessage() + "\n";
+		}
+
+		String resultString = "Imported " + imported + " reservation slots, " + duplicates + " duplicates, " + invalid
+				+ " invalid lines";
+		String[] parameters = { "slots" };
+		updateLog(requestTime, requestType, parameters, invalid == 0, resultString);
+		stats.record(requestType, invalid == 0, start);
+		tracer.finish(requestType);
+		if (!errors.isEmpty())
+			resultString += "\n" + errors;
 		return resultString;
 	}
 
+	/**
+	 * checks one line of an import
+	 * 
+	 * @param slot "eventID,eventType,capacity"
+	 * @return null for a blank line, the trimmed fields if the slot is valid,
+	 *         otherwise only the reason it is not
+	 */
+	private String[] checkSlot(String slot) {
+		if (slot.trim().isEmpty())
+			return null;
+		String[] fields = slot.split(",");
+		if (fields.length != 3)
+			return new String[] { "Expected eventID,eventType,capacity" };
+		String eventID = fields[0].trim();
+		String eventType = fields[1].trim();
+		int capacity;
+		try {
+			capacity = Integer.parseInt(fields[2].trim());
+		} catch (NumberFormatException e) {
+			return new String[] { "Invalid capacity" };
+		}
+		if (!checkEventType(eventType))
+			return new String[] { "Invalid event type" };
+		else if (!checkIDLength(eventID))
+			return new String[] { "Invalid event ID" };
+		else if (!checkCity(eventID) || !getEventCity(eventID).equals(serverName))
+			return new String[] { "Invalid city" };
+		else if (!checkTime(eventID))
+			return new String[] { "Invalid time of day" };
+		else if (!checkDate(eventID) || EventCalendar.getKey(eventID) < 0)
+			return new String[] { "Invalid date" };
+		else if (capacity <= 0)
+			return new String[] { "Invalid capacity" };
+		return new String[] { eventID, eventType, Integer.toString(capacity) };
+	}
+
 	@Override
 	public String removeReservationSlot(String eventID, String eventType) {
 		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("removeReservationSlot", getTraceId(), "client");
 		boolean success;
 		String resultString;
 		if (!checkEventType(eventType)) {
@@ -115,41 +494,41 @@ public class ServerOperationsImpl implements ServerOperationsInterface {
 			success = false;
 			resultString = "Invalid date";
 		} else {
-			HashMap<String, Festival> event = database.get(eventType);
-			Festival result = event.get(eventID);
-			// checks if the event exists
-			if (result != null) {
-				// check if the event is booked
-				if (result.getBooked() > 0) {
-					success = false;
-					resultString = "Removing reservation slot " + eventID
-							+ " failed because event is booked by one or more users";
-				} else {
-					synchronized (this) {
-						result = event.remove(eventID);
-					}
-					if (result != null) {
-						success = true;
-						resultString = "Removed reservation slot " + eventID + " from database successfully";
-					} else {
-						success = false;
-						resultString = "Removing reservation slot " + eventID + " from database rejected";
-					}
+			ConcurrentHashMap<String, Festival> event = database.get(eventType);
+			OperationResult result = onEvent("removeReservationSlot", eventID, () -> {
+				synchronized (catalogLock) {
+					Festival festival = event.get(eventID);
+					// checks if the event exists
+					if (festival == null)
+						return new OperationResult(false, "Removing reservation slot " + eventID
+								+ " from database failed because it does not exists");
+					// check if the event is booked
+					if (festival.getBooked() > 0 || festival.getSeatHolds() > 0)
+						return new OperationResult(false, "Removing reservation slot " + eventID
+								+ " failed because event is booked by one or more users");
+					event.remove(eventID);
+					calendar.remove(eventID, eventType);
+					return new OperationResult(true,
+							"Removed reservation slot " + eventID + " from database successfully");
 				}
-			} else {
-				success = false;
-				resultString = "Removing reservation slot " + eventID
-						+ " from database failed because it does not exists";
-			}
+			});
+			if (result.isSuccess())
+				availabilityChanged(eventID, eventType);
+			success = result.isSuccess();
+			resultString = result.getMessage();
 		}
 		String[] parameters = { "eventID", "eventType" };
 		updateLog(requestTime, "removeReservationSlot", parameters, success, resultString);
+		stats.record("removeReservationSlot", success, start);
+		tracer.finish("removeReservationSlot");
 		return resultString;
 	}
 
 	@Override
 	public String listReservationSlotAvailable(String eventType) {
 		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("listReservationSlotAvailable", getTraceId(), "client");
 		String result = eventType + ":\n";
 		boolean success;
 		String resultString;
@@ -162,34 +541,280 @@ public class ServerOperationsImpl implements ServerOperationsInterface {
 			result = listReservationSlotAvailableLocal(eventType);
 		}
 
-		// UDP section
-		DatagramSocket aSocket = null;
-		try {
-			aSocket = new DatagramSocket();
-			String requestString = "A " + eventType;
-			byte[] m = requestString.getBytes();
-			InetAddress host = InetAddress.getByName("localhost");
-			result += sendPacket(aSocket, m, requestString, host);
-		} catch (SocketException e) {
-			System.out.println("Socket: " + e.getMessage());
-		} catch (IOException e) {
-			System.out.println("IO: " + e.getMessage());
-		} finally {
-			if (aSocket != null)
-				aSocket.close();
+		// the other cities are answered from their replica, or from the
+		// availability cache while the replica is not synchronized
+		if (success) {
+			String[] otherCities = getOtherCities();
+			for (int i = 0; i < otherCities.length; i++) {
+				String city = otherCities[i];
+				String reply;
+				if (replicationEnabled && availabilityReplica.isSynced(city))
+					reply = availabilityReplica.listReservationSlotAvailable(city, eventType);
+				else
+					reply = availabilityCache.get(city, eventType, type -> queryCityShared(city, "A " + type));
+				if (reply == null)
+					reply = "";
+				result += "\t" + reply.trim();
+				if (i < otherCities.length - 1)
+					result += "\n";
+			}
 		}
 
 		String[] parameters = { "eventType" };
 		updateLog(requestTime, "listReservationSlotAvailable", parameters, success, resultString);
+		stats.record("listReservationSlotAvailable", success, start);
+		tracer.finish("listReservationSlotAvailable");
+		if (success)
+			return result;
+		else
+			return resultString;
+	}
+
+	@Override
+	public String listReservationSlotsBetween(String eventType, String fromDate, String toDate) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("listReservationSlotsBetween", getTraceId(), "client");
+		String result = eventType + " from " + fromDate + " to " + toDate + ":\n";
+		boolean success = false;
+		String resultString;
+		long fromDay = EventCalendar.getDay(fromDate);
+		long toDay = EventCalendar.getDay(toDate);
+		if (!checkEventType(eventType)) {
+			resultString = "Invalid event type";
+		} else if (fromDay < 0 || toDay < 0) {
+			resultString = "Invalid date, dates are ddMMyy";
+		} else if (fromDay > toDay) {
+			resultString = "Invalid range, " + fromDate + " is after " + toDate;
+		} else {
+			success = true;
+			resultString = "Listed reservation slots from " + fromDate + " to " + toDate;
+
+			// the other cities are asked at the same time
+			String[] otherCities = getOtherCities();
+			ArrayList<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>();
+			for (int i = 0; i < otherCities.length; i++) {
+				String city = otherCities[i];
+				String requestString = "L " + eventType + ";" + fromDate + ";" + toDate;
+				replies.add(askCity(city, requestString));
+			}
+
+			ArrayList<String> lines = new ArrayList<String>();
+			String missing = "";
+			long deadline = System.currentTimeMillis() + peerTimeout;
+			addLines(lines, listReservationSlotsBetweenLocal(eventType, fromDay, toDay, Integer.MAX_VALUE));
+			for (int i = 0; i < otherCities.length; i++) {
+				String reply = awaitReply(replies.get(i), deadline);
+				if (reply == null)
+					missing += "\t" + otherCities[i] + " did not answer\n";
+				else if (addLines(lines, reply))
+					missing += "\t" + otherCities[i] + " has more events in this range\n";
+			}
+			// events of all the cities in date order
+			lines.sort((a, b) -> Long.compare(EventCalendar.getKey(a.trim().split(" ")[0]),
+					EventCalendar.getKey(b.trim().split(" ")[0])));
+			for (int i = 0; i < lines.size(); i++)
+				result += lines.get(i) + "\n";
+			result += missing;
+		}
+		String[] parameters = { "eventType", "fromDate", "toDate" };
+		updateLog(requestTime, "listReservationSlotsBetween", parameters, success, resultString);
+		stats.record("listReservationSlotsBetween", success, start);
+		tracer.finish("listReservationSlotsBetween");
+		if (success)
+			return result;
+		else
+			return resultString;
+	}
+
+	@Override
+	public String findAvailableSlots(String eventType, String date, int count) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("findAvailableSlots", getTraceId(), "client");
+		String result = "";
+		boolean success = false;
+		String resultString;
+		long day = EventCalendar.getDay(date);
+		if (!checkEventType(eventType)) {
+			resultString = "Invalid event type";
+		} else if (day < 0) {
+			resultString = "Invalid date, dates are ddMMyy";
+		} else if (count < 1 || count > MAX_FIND_COUNT) {
+			resultString = "Invalid number of slots, it is from 1 to " + MAX_FIND_COUNT;
+		} else {
+			ArrayList<String> found = new ArrayList<String>();
+			addLines(found, findAvailableSlotsLocal(eventType, day, count));
+			String[] otherCities = getOtherCities();
+			int cancelled = 0;
+			if (found.size() < count) {
+				// the other cities are asked at the same time, the first replies
+				// that give enough slots end the search
+				String requestString = "Q " + eventType + ";" + date + ";" + (count - found.size());
+				DatagramSocket[] sockets = new DatagramSocket[otherCities.length];
+				LinkedBlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+				for (int i = 0; i < otherCities.length; i++) {
+					String city = otherCities[i];
+					try {
+						sockets[i] = new DatagramSocket();
+					} catch (SocketException e) {
+						System.out.println("Socket: " + e.getMessage());
+						replies.add("");
+						continue;
+					}
+					DatagramSocket aSocket = sockets[i];
+					CompletableFuture.runAsync(() -> {
+						String reply = "";
+						try {
+							byte[] m = requestString.getBytes();
+							reply = sendPacketToOneCity(aSocket, m, requestString, InetAddress.getByName("localhost"),
+									city);
+							if (reply.equals(AdmissionControl.BUSY))
+								reply = "";
+						} catch (IOException e) {
+							// did not answer, or the search is over and the socket was closed
+						}
+						replies.add(reply);
+					}, peerQueries);
+				}
+				int answered = 0;
+				long deadline = System.currentTimeMillis() + peerTimeout;
+				try {
+					while (answered < otherCities.length && found.size() < count) {
+						String reply = replies.poll(Math.max(0, deadline - System.currentTimeMillis()),
+								TimeUnit.MILLISECONDS);
+						if (reply == null)
+							break;
+						addLines(found, reply);
+						answered++;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				// stops waiting for the cities that did not answer yet
+				cancelled = otherCities.length - answered;
+				for (int i = 0; i < sockets.length; i++) {
+					if (sockets[i] != null)
+						sockets[i].close();
+				}
+			}
+			success = true;
+			for (int i = 0; i < found.size() && i < count; i++)
+				result += found.get(i) + "\n";
+			resultString = "Found " + Math.min(found.size(), count) + " available " + eventType + " slots on " + date
+					+ (cancelled > 0 ? ", " + cancelled + " cities not waited for" : "");
+			if (found.isEmpty())
+				result = "No available " + eventType + " slot on " + date;
+		}
+		String[] parameters = { "eventType", "date", "count" };
+		updateLog(requestTime, "findAvailableSlots", parameters, success, resultString);
+		stats.record("findAvailableSlots", success, start);
+		tracer.finish("findAvailableSlots");
 		if (success)
 			return result;
 		else
 			return resultString;
 	}
 
+	/**
+	 * finds the events of this city of a type on a day that still have a free
+	 * seat for someone new
+	 * 
+	 * @param eventType
+	 * @param day       as given by EventCalendar.getDay
+	 * @param count     most events returned
+	 * @return one "eventID remaining" line per event, in time of day order
+	 */
+	public String findAvailableSlotsLocal(String eventType, long day, int count) {
+		String result = "";
+		if (day < 0)
+			return result;
+		ArrayList<String> eventIDs = calendar.between(eventType, day, day);
+		int found = 0;
+		for (int i = 0; i < eventIDs.size() && found < count; i++) {
+			Festival festival = getEvent(eventIDs.get(i), eventType);
+			if (festival == null || festival.isFull() || festival.hasWaiters())
+				continue;
+			result += "\t" + eventIDs.get(i) + " " + festival.getRemaining() + "\n";
+			found++;
+		}
+		return result;
+	}
+
+	/**
+	 * adds the event lines of a listing
+	 * 
+	 * @param lines
+	 * @param listing
+	 * @return true if the listing was cut short
+	 */
+	private boolean addLines(ArrayList<String> lines, String listing) {
+		String[] listingLines = listing.split("\n");
+		boolean cut = false;
+		for (int i = 0; i < listingLines.length; i++) {
+			if (listingLines[i].trim().equals("..."))
+				cut = true;
+			else if (!listingLines[i].trim().isEmpty())
+				lines.add("\t" + listingLines[i].trim());
+		}
+		return cut;
+	}
+
+	/**
+	 * lists the events of this city of a type in a range of days, in date order
+	 * 
+	 * @param eventType
+	 * @param fromDay
+	 * @param toDay
+	 * @param maxLength the listing ends with a "..." line instead of going over
+	 *                  this length
+	 * @return
+	 */
+	public String listReservationSlotsBetweenLocal(String eventType, long fromDay, long toDay, int maxLength) {
+		String result = "";
+		ConcurrentHashMap<String, Festival> event = database.get(eventType);
+		ArrayList<String> eventIDs = calendar.between(eventType, fromDay, toDay);
+		for (int i = 0; i < eventIDs.size(); i++) {
+			Festival festival = event.get(eventIDs.get(i));
+			if (festival == null)
+				continue;
+			String line = "\t" + eventIDs.get(i) + " " + festival.getRemaining() + "\n";
+			if (result.length() + line.length() > maxLength) {
+				result += "\t...\n";
+				break;
+			}
+			result += line;
+		}
+		return result;
+	}
+
 	@Override
 	public String reserveTicket(String participantID, String eventID, String eventType) {
 		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("reserveTicket", getTraceId(), "client");
+		OperationResult result = idempotent("reserveTicket", participantID,
+				() -> admitted(participantID, () -> reserve(participantID, eventID, eventType, null)));
+		String[] parameters = { "participantID", "eventID", "eventType" };
+		updateLog(requestTime, "reserveTicket", parameters, result.isSuccess(), result.getMessage());
+		stats.record("reserveTicket", result.isSuccess(), start);
+		tracer.finish("reserveTicket");
+		return result.getMessage();
+	}
+
+	/**
+	 * reserves a ticket if the event exists, is not full and the user is allowed
+	 * to reserve it
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param eventType
+	 * @param schedule      the local event schedule of the user, or null to look
+	 *                      it up
+	 * @return
+	 */
+	private OperationResult reserve(String participantID, String eventID, String eventType, String schedule) {
+		long spanStart = tracer.start();
 		boolean success = false;
 		String resultString = null;
 		if (!checkEventType(eventType)) {
@@ -208,575 +833,2300 @@ public class ServerOperationsImpl implements ServerOperationsInterface {
 			success = false;
 			resultString = "Invalid date";
 		} else {
-			HashMap<String, Festival> event = database.get(eventType);
-			Festival festival = event.get(eventID);
-
-			String pattern = "ddMMyy";
-			SimpleDateFormat sdf = new SimpleDateFormat(pattern);
-			String addDateString = eventID.substring(4);
-			Date addDate = null;
-			try {
-				addDate = sdf.parse(addDateString);
-			} catch (ParseException e) {
-				System.out.println("Parse exception AddDateString = " + addDateString);
-				e.printStackTrace();
+			tracer.span("validation", spanStart);
+			spanStart = tracer.start();
+			Festival festival = database.get(eventType).get(eventID);
+			String refusal;
+			// checks if the event exists and if it is full, the seats freed while
+			// users are waiting go to the waitlist
+			if (festival == null) {
+				success = false;
+				resultString = "Event with ID " + eventID + " does not exist";
+			} else if (festival.isFull() || festival.hasWaiters()) {
+				success = false;
+				resultString = getFullMessage(eventID);
+			} else if ((refusal = checkReservationRules(participantID, eventID, eventType, schedule)) != null) {
+				success = false;
+				resultString = refusal;
+			} else {
+				tracer.span("local-work", spanStart);
+				spanStart = tracer.start();
+				int outcome = reservationCombiner.reserve(eventID, festival, participantID);
+				tracer.span("reserve", spanStart);
+				success = outcome == ReservationCombiner.ADDED;
+				if (success) {
+					availabilityChanged(eventID, eventType);
+					bookingChanged(participantID, eventID, true);
+					resultString = "User " + participantID + " was successfully added to event " + eventID;
+				} else if (outcome == ReservationCombiner.FULL)
+					resultString = getFullMessage(eventID);
+				else
+					resultString = "User " + participantID + " was not added to event " + eventID
+							+ " because user is already in the event";
 			}
+		}
+		return new OperationResult(success, resultString);
+	}
 
-			String[] userEvents = getEventScheduleLocal(participantID).trim().split("\n");
+	private String getFullMessage(String eventID) {
+		return "Event with ID " + eventID + " is full, join its waitlist to get the next free seat";
+	}
 
-			// check if the event to be added has the same day of one of the days in the
-			// database
-			boolean isSameDay = false;
-			Iterator it = event.entrySet().iterator();
-			while (it.hasNext()) {
-				Map.Entry eventPair = (Map.Entry) it.next();
-				String tempEventDate = ((String) eventPair.getKey()).substring(4);
-				Festival tempEvent = (Festival) eventPair.getValue();
-				if (tempEventDate.equals(addDateString) && tempEvent.getBookings().contains(participantID)) {
-					isSameDay = true;
-					break;
+	/**
+	 * checks if a user may be booked to an event: not twice on the same day and,
+	 * for a user of another city, not more than 3 events within a week
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param eventType
+	 * @param schedule      the local event schedule of the user, or null to look
+	 *                      it up
+	 * @return why the user can't be booked, or null if the user can
+	 */
+	private String checkReservationRules(String participantID, String eventID, String eventType, String schedule) {
+		ConcurrentHashMap<String, Festival> event = database.get(eventType);
+		String pattern = "ddMMyy";
+		SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+		String addDateString = eventID.substring(4);
+		Date addDate = null;
+		try {
+			addDate = sdf.parse(addDateString);
+		} catch (ParseException e) {
+			System.out.println("Parse exception AddDateString = " + addDateString);
+			e.printStackTrace();
+		}
+
+		if (schedule == null)
+			schedule = getEventScheduleLocal(participantID);
+
+		// check if the event to be added has the same day of one of the days in the
+		// database
+		long addDay = EventCalendar.getDay(addDateString);
+		ArrayList<String> sameDayEvents = calendar.between(eventType, addDay, addDay);
+		for (int i = 0; i < sameDayEvents.size(); i++) {
+			Festival tempEvent = event.get(sameDayEvents.get(i));
+			if (tempEvent != null && tempEvent.getBookings().contains(participantID))
+				return "Can't reserve user " + participantID + " to event " + eventID
+						+ " because user is already reserved to another event on the same day";
+		}
+
+		// check if the user is local or not, only users of other cities have the
+		// weekly limit
+		if (getServerName().equals(participantID.substring(0, 3)))
+			return null;
+
+		boolean userAllowedAdd = true;
+
+		// the events of the user here, and in the cities other than this one and
+		// the user's own
+		ArrayList<String> userEvents = new ArrayList<String>();
+		String[] localEvents = schedule.trim().split("\n");
+		for (int i = 0; i < localEvents.length; i++) {
+			if (!localEvents[i].trim().isEmpty())
+				userEvents.add(localEvents[i].trim());
+		}
+		ArrayList<String> remoteEvents = getRemoteBookings(participantID);
+		for (int i = 0; i < remoteEvents.size(); i++) {
+			if (!getEventCity(remoteEvents.get(i)).equals(serverName))
+				userEvents.add(remoteEvents.get(i));
+		}
+
+		// counter for the 7 day limit
+		// each index is a week of 7 days holding the new event
+		// and index j starts j days before it
+		int weeklyCounter[] = new int[7];
+
+		if (!userEvents.isEmpty()) {
+			for (int i = 0; i < userEvents.size(); i++) {
+				// MASSIVELY CHANGED
+				String tempDateString = userEvents.get(i).substring(4);
+				Date tempDate = null;
+				try {
+					tempDate = sdf.parse(tempDateString);
+				} catch (ParseException e) {
+					System.out.println("Parse exception AddDateString = " + addDateString);
+					e.printStackTrace();
 				}
-			}
+				// an ID without a date can't be in any week
+				if (tempDate == null)
+					continue;
+				// CHANGES FROM A1 post submission
 
-			// check if the user is local or not
-			if (getServerName().equals(participantID.substring(0, 3))) {
-				// checks if festival exists and if its full
-				if (festival == null) {
-					success = false;
-					resultString = "Event with ID " + eventID + " does not exist";
-				} else if (festival.isFull()) {
-					success = false;
-					resultString = "Event with ID " + eventID + " is full";
-				} else if (isSameDay) {
-					success = false;
-					resultString = "Can't reserve user " + participantID + " to event " + eventID
-							+ " because user is already reserved to another event on the same day";
-				} else {
-					synchronized (this) {
-						success = festival.addBookings(participantID);
-					}
-					if (success)
-						resultString = "User " + participantID + " was successfully added to event " + eventID;
-					else
-						resultString = "User " + participantID + " was not added to event " + eventID
-								+ " because user is already in the event";
+				// count the gap
+				long diffInMillies = tempDate.getTime() - addDate.getTime();
+				long gap = TimeUnit.DAYS.convert(diffInMillies, TimeUnit.MILLISECONDS);
+
+				// count the days that is in the proper weeks
+				for (int j = 0; j < weeklyCounter.length; j++) {
+					if (gap >= -j && gap <= 6 - j)
+						weeklyCounter[j]++;
 				}
-			} else {
-				// checks if the event exists or if full
-				if (festival == null) {
-					success = false;
-					resultString = "Event with ID " + eventID + " does not exist";
-				} else if (festival.isFull()) {
-					success = false;
-					resultString = "Event with ID " + eventID + " is full";
-				} else if (isSameDay) {
-					success = false;
-					resultString = "Can't reserve user " + participantID + " to event " + eventID
-							+ " because user is already reserved to another event on the same day";
-				} else {
 
-					boolean userAllowedAdd = true;
-
-					// counter for the 7 day limit
-					// each index is a week
-					// and each index starts at (7 + index offset) days
-					int weeklyCounter[] = new int[7];
-
-					if (!userEvents[0].isEmpty()) {
-						for (int i = 0; i < userEvents.length; i++) {
-							// MASSIVELY CHANGED
-							String tempDateString = userEvents[i].trim().substring(4);
-							Date tempDate = null;
-							try {
-								tempDate = sdf.parse(tempDateString);
-							} catch (ParseException e) {
-								System.out.println("Parse exception AddDateString = " + addDateString);
-								e.printStackTrace();
-							}
-							// CHANGES FROM A1 post submission
-
-							// count the gap
-							long diffInMillies = tempDate.getTime() - addDate.getTime();
-							long gap = TimeUnit.DAYS.convert(diffInMillies, TimeUnit.MILLISECONDS);
-
-							// count the days that is in the proper weeks
-							if (gap >= -7 && gap <= 0)
-								weeklyCounter[0]++;
-							if (gap >= -6 && gap <= 1)
-								weeklyCounter[1]++;
-							if (gap >= -5 && gap <= 2)
-								weeklyCounter[2]++;
-							if (gap >= -4 && gap <= 3)
-								weeklyCounter[3]++;
-							if (gap >= -3 && gap <= 4)
-								weeklyCounter[4]++;
-							if (gap >= -2 && gap <= 5)
-								weeklyCounter[5]++;
-							if (gap >= -1 && gap <= 6)
-								weeklyCounter[6]++;
-							if (gap >= 0 && gap <= 7)
-								weeklyCounter[7]++;
-
-							// break if any of the numbers in the array is over 4
-							for (int j = 0; j < weeklyCounter.length; j++) {
-								if (weeklyCounter[j] >= 3) {
-									userAllowedAdd = false;
-									break;
-								}
-							}
-
-							if (!userAllowedAdd)
-								break;
-						}
-					}
-					if (userAllowedAdd) {
-						synchronized (this) {
-							success = festival.addBookings(participantID);
-						}
-						if (success)
-							resultString = "User " + participantID + " was successfully added to event " + eventID;
-						else
-							resultString = "User " + participantID + " was not added to event " + eventID;
-					} else {
-						success = false;
-						resultString = "User " + participantID + " already has 3 events within a week";
+				// break if any of the numbers in the array is over 4
+				for (int j = 0; j < weeklyCounter.length; j++) {
+					if (weeklyCounter[j] >= 3) {
+						userAllowedAdd = false;
+						break;
 					}
 				}
+
+				if (!userAllowedAdd)
+					break;
 			}
 		}
-		String[] parameters = { "participantID", "eventID", "eventType" };
-		updateLog(requestTime, "reserveTicket", parameters, success, resultString);
-		return resultString;
+		if (!userAllowedAdd)
+			return "User " + participantID + " already has 3 events within a week";
+		return null;
 	}
 
 	@Override
 	public String getEventSchedule(String participantID) {
 		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("getEventSchedule", getTraceId(), "client");
 		boolean success = false;
 		String result = "";
 		String resultString = "";
 
-		success = true;
-		result += getEventScheduleLocal(participantID);
-		resultString = "Listed all event schedule of user " + participantID;
-
-		// UDP section
-		DatagramSocket aSocket = null;
-		try {
-			aSocket = new DatagramSocket();
-			String requestString = "P " + participantID;
-			byte[] m = requestString.getBytes();
-			InetAddress host = InetAddress.getByName("localhost");
-			result += sendPacket(aSocket, m, requestString, host);
-		} catch (SocketException e) {
-			System.out.println("Socket: " + e.getMessage());
-		} catch (IOException e) {
-			System.out.println("IO: " + e.getMessage());
-		} finally {
-			if (aSocket != null)
-				aSocket.close();
-		}
+		OperationResult schedule = admitted(participantID,
+				() -> new OperationResult(true, getEventScheduleAll(participantID)));
+		success = schedule.isSuccess();
+		if (success) {
+			result = schedule.getMessage();
+			resultString = "Listed all event schedule of user " + participantID;
+		} else
+			resultString = schedule.getMessage();
 
 		String[] parameters = { "participantID" };
 		updateLog(requestTime, "getEventSchedule", parameters, success, resultString);
+		stats.record("getEventSchedule", success, start);
+		tracer.finish("getEventSchedule");
 		if (success)
 			return result;
 		else
 			return resultString;
 	}
 
+	/**
+	 * gets the event schedule of a user in this city and the other cities
+	 * 
+	 * @param participantID
+	 * @return
+	 */
+	private String getEventScheduleAll(String participantID) {
+		String result = getEventScheduleLocal(participantID);
+
+		// UDP section
+		String[] otherCities = getOtherCities();
+		for (int i = 0; i < otherCities.length; i++) {
+			String reply = queryCityShared(otherCities[i], "P " + participantID);
+			if (reply == null)
+				reply = "";
+			result += "\t" + reply.trim();
+			if (i < otherCities.length - 1)
+				result += "\n";
+		}
+		return result;
+	}
+
 	@Override
 	public String cancelTicket(String participantID, String eventID) {
 		String requestTime = getTime();
-		boolean success;
-		String resultString = null;
-		if (!checkIDLength(eventID)) {
-			success = false;
-			resultString = "Invalid event ID";
-		} else if (!checkCity(eventID)) {
-			success = false;
-			resultString = "Invalid city";
-		} else if (!checkTime(eventID)) {
-			success = false;
-			resultString = "Invalid time of day";
-		} else if (!checkDate(eventID)) {
-			success = false;
-			resultString = "Invalid date";
-		} else {
-			Festival festival = null;
-			Iterator it = database.entrySet().iterator();
-			while (it.hasNext()) {
-				Map.Entry eventPair = (Map.Entry) it.next();
-				festival = ((HashMap<String, Festival>) eventPair.getValue()).get(eventID);
-				if (festival != null)
-					break;
-			}
-			if (festival == null) {
-				success = false;
-				resultString = "Event with ID " + eventID + " does not exist";
-			} else {
-				synchronized (this) {
-					success = festival.removeBookings(participantID);
-				}
-				if (success)
-					resultString = "User " + participantID + " was successfully removed from event " + eventID;
-				else
-					resultString = "User " + participantID + " was not removed because user is not in event " + eventID;
+		long start = System.nanoTime();
+		tracer.begin("cancelTicket", getTraceId(), "client");
+		OperationResult result = idempotent("cancelTicket", participantID,
+				() -> admitted(participantID, () -> cancel(participantID, eventID)));
+		String[] parameters = { "participantID", "eventID" };
+		updateLog(requestTime, "cancelTicket", parameters, result.isSuccess(), result.getMessage());
+		stats.record("cancelTicket", result.isSuccess(), start);
+		tracer.finish("cancelTicket");
+		return result.getMessage();
+	}
+
+	@Override
+	public String holdTicket(String participantID, String eventID, String eventType) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("holdTicket", getTraceId(), "client");
+		OperationResult result = idempotent("holdTicket", participantID,
+				() -> admitted(participantID, () -> hold(participantID, eventID, eventType)));
+		String[] parameters = { "participantID", "eventID", "eventType" };
+		updateLog(requestTime, "holdTicket", parameters, result.isSuccess(), result.getMessage());
+		stats.record("holdTicket", result.isSuccess(), start);
+		tracer.finish("holdTicket");
+		return result.getMessage();
+	}
+
+	/**
+	 * holds a seat for a user for holdTtl milliseconds, if the user could
+	 * reserve it
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param eventType
+	 * @return
+	 */
+	private OperationResult hold(String participantID, String eventID, String eventType) {
+		if (!checkEventType(eventType))
+			return new OperationResult(false, "Invalid event type");
+		if (!checkIDLength(eventID) || !checkTime(eventID) || !checkDate(eventID))
+			return new OperationResult(false, "Invalid event ID");
+		if (!getEventCity(eventID).equals(serverName))
+			return new OperationResult(false, "Event " + eventID + " is not an event of " + serverName);
+		Festival festival = getEvent(eventID, eventType);
+		if (festival == null)
+			return new OperationResult(false, "Event with ID " + eventID + " does not exist");
+		if (festival.isFull() || festival.hasWaiters())
+			return new OperationResult(false, getFullMessage(eventID));
+		String refusal = checkReservationRules(participantID, eventID, eventType, null);
+		if (refusal != null)
+			return new OperationResult(false, refusal);
+		String key = participantID + " " + eventID;
+		// the expiry is registered before the seat is held, so a confirm or
+		// release sent as soon as the hold shows finds it
+		TimingWheel.Timeout timeout = holdExpiry.schedule(key, holdTtl);
+		if (seatHolds.putIfAbsent(key, timeout) != null) {
+			timeout.cancel();
+			return new OperationResult(false, "User " + participantID + " already holds a seat in event " + eventID);
+		}
+		if (!onEvent("holdTicket", eventID, () -> festival.holdSeat(participantID))) {
+			if (seatHolds.remove(key, timeout))
+				timeout.cancel();
+			if (festival.isUserBooked(participantID))
+				return new OperationResult(false,
+						"User " + participantID + " was not added to event " + eventID + " because user is already in the event");
+			if (festival.isFull())
+				return new OperationResult(false, getFullMessage(eventID));
+			return new OperationResult(false, "User " + participantID + " already holds a seat in event " + eventID);
+		}
+		if (seatHolds.get(key) != timeout) {
+			// finished before the seat was taken, the finish found no seat to
+			// book or give back
+			onEvent("releaseHold", eventID, () -> festival.releaseSeat(participantID));
+			return new OperationResult(false, "Seat hold for user " + participantID + " in event " + eventID
+					+ " was released before it was taken");
+		}
+		availabilityChanged(eventID, eventType);
+		return new OperationResult(true, "Seat held for user " + participantID + " in event " + eventID + " for "
+				+ holdTtl / 1000 + " seconds, confirm it to reserve the ticket");
+	}
+
+	@Override
+	public String confirmHold(String participantID, String eventID) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("confirmHold", getTraceId(), "client");
+		OperationResult result = idempotent("confirmHold", participantID,
+				() -> admitted(participantID, () -> finishHold(participantID, eventID, true)));
+		String[] parameters = { "participantID", "eventID" };
+		updateLog(requestTime, "confirmHold", parameters, result.isSuccess(), result.getMessage());
+		stats.record("confirmHold", result.isSuccess(), start);
+		tracer.finish("confirmHold");
+		return result.getMessage();
+	}
+
+	@Override
+	public String releaseHold(String participantID, String eventID) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("releaseHold", getTraceId(), "client");
+		OperationResult result = idempotent("releaseHold", participantID,
+				() -> admitted(participantID, () -> finishHold(participantID, eventID, false)));
+		String[] parameters = { "participantID", "eventID" };
+		updateLog(requestTime, "releaseHold", parameters, result.isSuccess(), result.getMessage());
+		stats.record("releaseHold", result.isSuccess(), start);
+		tracer.finish("releaseHold");
+		return result.getMessage();
+	}
+
+	/**
+	 * books or gives back the seat held by a user. The reservation rules are
+	 * checked again before booking, the user may have reserved another event
+	 * since the hold.
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param confirm       true to book the seat, false to give it back
+	 * @return
+	 */
+	private OperationResult finishHold(String participantID, String eventID, boolean confirm) {
+		// whoever takes the hold out of the map, this or the expiry, finishes it
+		TimingWheel.Timeout timeout = seatHolds.remove(participantID + " " + eventID);
+		Festival festival = checkIDLength(eventID) ? getEvent(eventID) : null;
+		if (timeout == null || festival == null)
+			return new OperationResult(false,
+					"User " + participantID + " holds no seat in event " + eventID + ", it may have expired");
+		timeout.cancel();
+		String eventType = getEventType(eventID);
+		String refusal = null;
+		if (confirm)
+			refusal = checkReservationRules(participantID, eventID, eventType, null);
+		boolean finished;
+		if (confirm && refusal == null)
+			finished = onEvent("confirmHold", eventID, () -> festival.confirmSeat(participantID));
+		else
+			finished = onEvent("releaseHold", eventID, () -> festival.releaseSeat(participantID));
+		if (!finished)
+			return new OperationResult(false, "User " + participantID + " holds no seat in event " + eventID);
+		if (confirm && refusal == null) {
+			// the seat count is the same, only the followers have to know
+			mutationLog.changed(eventID, eventType, false);
+			bookingChanged(participantID, eventID, true);
+			return new OperationResult(true, "User " + participantID + " was successfully added to event " + eventID);
+		}
+		availabilityChanged(eventID, eventType);
+		promoteWaiters(eventID, festival);
+		if (confirm)
+			return new OperationResult(false, refusal);
+		return new OperationResult(true, "Seat held for user " + participantID + " in event " + eventID + " released");
+	}
+
+	/**
+	 * gives back the seat of a hold that was not confirmed in time
+	 * 
+	 * @param timeout
+	 */
+	private void expireHold(TimingWheel.Timeout timeout) {
+		if (!seatHolds.remove(timeout.getKey(), timeout))
+			return;
+		String[] key = timeout.getKey().split(" ");
+		Festival festival = getEvent(key[1]);
+		if (festival == null || !onEvent("expireHold", key[1], () -> festival.releaseSeat(key[0])))
+			return;
+		String[] parameters = { "participantID", "eventID" };
+		updateLog(getTime(), "expireHold", parameters, true,
+				"Seat held for user " + key[0] + " in event " + key[1] + " expired");
+		availabilityChanged(key[1], getEventType(key[1]));
+		// not on the wheel thread, checking a waiter may ask another city
+		CompletableFuture.runAsync(() -> promoteWaiters(key[1], festival));
+	}
+
+	@Override
+	public String joinWaitlist(String participantID, String eventID, String eventType) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("joinWaitlist", getTraceId(), "client");
+		OperationResult result = idempotent("joinWaitlist", participantID,
+				() -> admitted(participantID, () -> waitlist(participantID, eventID, eventType)));
+		String[] parameters = { "participantID", "eventID", "eventType" };
+		updateLog(requestTime, "joinWaitlist", parameters, result.isSuccess(), result.getMessage());
+		stats.record("joinWaitlist", result.isSuccess(), start);
+		tracer.finish("joinWaitlist");
+		return result.getMessage();
+	}
+
+	/**
+	 * puts a user in the waitlist of a full event, or reserves the ticket right
+	 * away if there is a seat
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param eventType
+	 * @return
+	 */
+	private OperationResult waitlist(String participantID, String eventID, String eventType) {
+		if (!checkEventType(eventType))
+			return new OperationResult(false, "Invalid event type");
+		if (!checkIDLength(eventID) || !checkTime(eventID) || !checkDate(eventID))
+			return new OperationResult(false, "Invalid event ID");
+		if (!getEventCity(eventID).equals(serverName))
+			return new OperationResult(false, "Event " + eventID + " is not an event of " + serverName);
+		Festival festival = getEvent(eventID, eventType);
+		if (festival == null)
+			return new OperationResult(false, "Event with ID " + eventID + " does not exist");
+		if (!festival.isFull() && !festival.hasWaiters())
+			return reserve(participantID, eventID, eventType, null);
+		String refusal = checkReservationRules(participantID, eventID, eventType, null);
+		if (refusal != null)
+			return new OperationResult(false, refusal);
+		int position = festival.addWaiter(participantID);
+		if (position == 0)
+			return new OperationResult(false,
+					"User " + participantID + " is already in event " + eventID + " or its waitlist");
+		// a seat may have been freed before the user was added
+		promoteWaiters(eventID, festival);
+		return new OperationResult(true,
+				"User " + participantID + " was added to the waitlist of event " + eventID + " at position " + position);
+	}
+
+	/**
+	 * gives the free seats of an event to its waitlist, in order. The users are
+	 * checked against the same day and weekly rules again, a user who can't be
+	 * booked anymore is taken out of the waitlist.
+	 * 
+	 * @param eventID
+	 * @param festival
+	 */
+	private void promoteWaiters(String eventID, Festival festival) {
+		String eventType = getEventType(eventID);
+		boolean promoted = false;
+		while (!festival.isFull()) {
+			String waiter = festival.getNextWaiter();
+			if (waiter == null)
+				break;
+			String refusal = checkReservationRules(waiter, eventID, eventType, null);
+			boolean allowed = refusal == null;
+			if (!onEvent("promoteWaiter", eventID, () -> festival.promoteWaiter(waiter, allowed)))
+				continue;
+			String message;
+			if (allowed) {
+				promoted = true;
+				bookingChanged(waiter, eventID, true);
+				message = "User " + waiter + " got a seat in event " + eventID + " from the waitlist";
+			} else {
+				message = "User " + waiter + " was taken out of the waitlist of event " + eventID + ": " + refusal;
+			}
+			String[] parameters = { "participantID", "eventID" };
+			updateLog(getTime(), "promoteWaiter", parameters, allowed, message);
+			notifyParticipant(waiter, message);
+		}
+		if (promoted)
+			availabilityChanged(eventID, eventType);
+	}
+
+	/**
+	 * tells the home city of a user of another city that a booking of the user
+	 * in this city was added or removed, for the weekly limit. It is sent in
+	 * the background with a key and retries, this can run while a batch holds
+	 * the server lock
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param booked        true if it was added
+	 */
+	private void bookingChanged(String participantID, String eventID, boolean booked) {
+		String city = participantID.substring(0, 3);
+		if (city.equals(serverName) || !Arrays.asList(getOtherCities()).contains(city))
+			return;
+		String requestString = "W " + (booked ? "+" : "-") + " " + participantID + " " + eventID;
+		bookingUpdates.execute(() -> {
+			// the home city rebuilds its list later, see RemoteBookings
+			if (queryCity(city, requestString) == null)
+				System.out.println(city + " did not get " + requestString);
+		});
+	}
+
+	/**
+	 * gets the bookings of a user of another city in the cities other than its
+	 * own, from the copy kept here or else from the user's city
+	 * 
+	 * @param participantID
+	 * @return the event IDs, empty if the user's city could not be asked
+	 */
+	private ArrayList<String> getRemoteBookings(String participantID) {
+		String city = participantID.substring(0, 3);
+		String events = remoteBookings.getCached(participantID);
+		if (events == null && Arrays.asList(getOtherCities()).contains(city)) {
+			if (Thread.currentThread() == peerThread || Thread.holdsLock(this)) {
+				// the other city may be waiting on this one, or a batch holds the
+				// server lock, the copy is fetched in the background for the next
+				// reservation
+				CompletableFuture.runAsync(() -> fetchRemoteBookings(participantID));
+			} else {
+				events = fetchRemoteBookings(participantID);
+			}
+		}
+		ArrayList<String> eventIDs = new ArrayList<String>();
+		if (events != null && !events.isEmpty())
+			eventIDs.addAll(Arrays.asList(events.split(",")));
+		return eventIDs;
+	}
+
+	/**
+	 * asks the city of a user for its bookings in the other cities, and keeps a
+	 * copy. When the city does not answer or has no list yet, the schedules of
+	 * the user in the cities other than this one and its own are read instead
+	 * 
+	 * @param participantID
+	 * @return the event IDs comma separated, or null if no city answered
+	 */
+	private String fetchRemoteBookings(String participantID) {
+		String reply = queryCityShared(participantID.substring(0, 3), "W ? " + participantID);
+		String events;
+		if (reply != null && reply.startsWith("W") && !reply.equals("W !")) {
+			events = reply.substring(1).trim();
+		} else {
+			ArrayList<String> eventIDs = readRemoteBookings(participantID);
+			if (eventIDs == null)
+				return null;
+			events = String.join(",", eventIDs);
+		}
+		remoteBookings.putCached(participantID, events);
+		return events;
+	}
+
+	/**
+	 * reads the schedules of a user in the cities other than this one and the
+	 * user's own
+	 * 
+	 * @param participantID
+	 * @return the event IDs, or null if a city did not answer
+	 */
+	private ArrayList<String> readRemoteBookings(String participantID) {
+		ArrayList<String> eventIDs = new ArrayList<String>();
+		String[] otherCities = getOtherCities();
+		for (int i = 0; i < otherCities.length; i++) {
+			if (participantID.startsWith(otherCities[i]))
+				continue;
+			String reply = queryCityShared(otherCities[i], "P " + participantID);
+			if (reply == null)
+				return null;
+			String[] lines = reply.trim().split("\\s+");
+			for (int j = 0; j < lines.length; j++) {
+				if (!lines[j].isEmpty())
+					eventIDs.add(lines[j]);
+			}
+		}
+		return eventIDs;
+	}
+
+	/**
+	 * leaves a message for a user, in this city or in the user's city
+	 * 
+	 * @param participantID
+	 * @param message
+	 */
+	private void notifyParticipant(String participantID, String message) {
+		String city = participantID.substring(0, 3);
+		if (city.equals(serverName)) {
+			addNotification(participantID, message);
+		} else {
+			// not waited for, this can run while a batch holds the server lock
+			notifyCities(new String[] { city }, "N " + participantID + " " + message);
+		}
+	}
+
+	private void addNotification(String participantID, String message) {
+		notifications.computeIfAbsent(participantID, id -> new ConcurrentLinkedQueue<String>())
+				.add(getTime() + " " + message);
+	}
+
+	@Override
+	public String getNotifications(String participantID) {
+		String result = "";
+		ConcurrentLinkedQueue<String> messages = notifications.get(participantID);
+		String message = messages == null ? null : messages.poll();
+		while (message != null) {
+			result += message + "\n";
+			message = messages.poll();
+		}
+		if (result.isEmpty())
+			return "No notifications for user " + participantID;
+		return result;
+	}
+
+	/**
+	 * removes the booking of a user from an event
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @return
+	 */
+	private OperationResult cancel(String participantID, String eventID) {
+		boolean success;
+		String resultString = null;
+		if (!checkIDLength(eventID)) {
+			success = false;
+			resultString = "Invalid event ID";
+		} else if (!checkCity(eventID)) {
+			success = false;
+			resultString = "Invalid city";
+		} else if (!checkTime(eventID)) {
+			success = false;
+			resultString = "Invalid time of day";
+		} else if (!checkDate(eventID)) {
+			success = false;
+			resultString = "Invalid date";
+		} else {
+			Festival festival = getEvent(eventID);
+			if (festival == null) {
+				success = false;
+				resultString = "Event with ID " + eventID + " does not exist";
+			} else {
+				success = onEvent("cancelTicket", eventID,
+						() -> !festival.isHeld(participantID) && festival.removeBookings(participantID));
+				if (success) {
+					availabilityChanged(eventID, getEventType(eventID));
+					bookingChanged(participantID, eventID, false);
+					promoteWaiters(eventID, festival);
+					resultString = "User " + participantID + " was successfully removed from event " + eventID;
+				} else if (festival.removeWaiter(participantID)) {
+					success = true;
+					resultString = "User " + participantID + " was removed from the waitlist of event " + eventID;
+				} else if (festival.isHeld(participantID))
+					resultString = "User " + participantID + " was not removed because an exchange of event "
+							+ eventID + " is in progress";
+				else
+					resultString = "User " + participantID + " was not removed because user is not in event " + eventID;
+			}
+		}
+		return new OperationResult(success, resultString);
+	}
+
+	@Override
+	public String[] reserveTickets(String[] participantIDs, String[] eventIDs, String[] eventTypes) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("reserveTickets", getTraceId(), "client");
+		String[] results;
+		int succeeded = 0;
+		if (participantIDs == null || eventIDs == null || eventTypes == null || participantIDs.length != eventIDs.length
+				|| participantIDs.length != eventTypes.length) {
+			results = new String[] { "Invalid batch, every participant needs an event ID and an event type" };
+		} else {
+			results = new String[participantIDs.length];
+			if (admission.enter()) {
+				try {
+					succeeded = runBatch('R', participantIDs, eventIDs, eventTypes, results);
+				} finally {
+					admission.exit();
+				}
+			} else {
+				Arrays.fill(results, AdmissionControl.BUSY);
+			}
+		}
+		String[] parameters = { "participantIDs", "eventIDs", "eventTypes" };
+		updateLog(requestTime, "reserveTickets", parameters, succeeded == results.length,
+				"Reserved " + succeeded + " of " + results.length + " tickets");
+		stats.record("reserveTickets", succeeded == results.length, start);
+		tracer.finish("reserveTickets");
+		return results;
+	}
+
+	@Override
+	public String[] cancelTickets(String[] participantIDs, String[] eventIDs) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("cancelTickets", getTraceId(), "client");
+		String[] results;
+		int succeeded = 0;
+		if (participantIDs == null || eventIDs == null || participantIDs.length != eventIDs.length) {
+			results = new String[] { "Invalid batch, every participant needs an event ID" };
+		} else {
+			results = new String[participantIDs.length];
+			if (admission.enter()) {
+				try {
+					succeeded = runBatch('C', participantIDs, eventIDs, null, results);
+				} finally {
+					admission.exit();
+				}
+			} else {
+				Arrays.fill(results, AdmissionControl.BUSY);
+			}
+		}
+		String[] parameters = { "participantIDs", "eventIDs" };
+		updateLog(requestTime, "cancelTickets", parameters, succeeded == results.length,
+				"Cancelled " + succeeded + " of " + results.length + " tickets");
+		stats.record("cancelTickets", succeeded == results.length, start);
+		tracer.finish("cancelTickets");
+		return results;
+	}
+
+	/**
+	 * runs the items of this city under one lock and sends the items of every
+	 * other city in "B" datagrams
+	 * 
+	 * @param operation      'R' to reserve, 'C' to cancel
+	 * @param participantIDs
+	 * @param eventIDs
+	 * @param eventTypes     the event type of each item, null to cancel
+	 * @param results        filled with the message of each item
+	 * @return the number of items that succeeded
+	 */
+	private int runBatch(char operation, String[] participantIDs, String[] eventIDs, String[] eventTypes,
+			String[] results) {
+		int succeeded = 0;
+		HashMap<String, ArrayList<Integer>> remoteItems = new HashMap<String, ArrayList<Integer>>();
+		ArrayList<Integer> localItems = new ArrayList<Integer>();
+		String[] items = new String[participantIDs.length];
+		for (int i = 0; i < items.length; i++) {
+			String eventType = eventTypes == null ? "" : eventTypes[i];
+			// the fields of an item are sent to the other cities as one line
+			if (!checkBatchField(participantIDs[i]) || participantIDs[i].length() < 3) {
+				results[i] = "Invalid participant ID";
+				continue;
+			} else if (!checkBatchField(eventIDs[i])) {
+				results[i] = "Invalid event ID";
+				continue;
+			} else if (!checkBatchField(eventType)) {
+				results[i] = "Invalid event type";
+				continue;
+			}
+			items[i] = participantIDs[i] + ";" + eventIDs[i] + (eventTypes == null ? "" : ";" + eventType);
+			String eventID = eventIDs[i];
+			String city = eventID.length() < 3 ? serverName : getEventCity(eventID);
+			if (city.equals(serverName) || !checkCity(eventID)) {
+				localItems.add(i);
+			} else {
+				if (!remoteItems.containsKey(city))
+					remoteItems.put(city, new ArrayList<Integer>());
+				remoteItems.get(city).add(i);
+			}
+		}
+
+		String[] localParticipantIDs = new String[localItems.size()];
+		String[] localEventIDs = new String[localItems.size()];
+		String[] localEventTypes = new String[localItems.size()];
+		for (int i = 0; i < localItems.size(); i++) {
+			int item = localItems.get(i);
+			localParticipantIDs[i] = participantIDs[item];
+			localEventIDs[i] = eventIDs[item];
+			localEventTypes[i] = eventTypes == null ? null : eventTypes[item];
+		}
+		OperationResult[] localResults = runBatchLocal(operation, localParticipantIDs, localEventIDs,
+				localEventTypes);
+		for (int i = 0; i < localResults.length; i++) {
+			results[localItems.get(i)] = localResults[i].getMessage();
+			if (localResults[i].isSuccess())
+				succeeded++;
+		}
+
+		Iterator<Map.Entry<String, ArrayList<Integer>>> it = remoteItems.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ArrayList<Integer>> cityPair = it.next();
+			String city = cityPair.getKey();
+			ArrayList<Integer> cityItems = cityPair.getValue();
+			int first = 0;
+			while (first < cityItems.size()) {
+				// B <operation>, followed by one item per line. The replies have to
+				// fit in the 1000 byte receive buffer, so a datagram carries only as
+				// many items as the longest replies fit.
+				String requestString = "B " + operation;
+				int last = first;
+				while (last < cityItems.size() && last - first < MAX_BATCH_DATAGRAM_ITEMS
+						&& requestString.length() + items[cityItems.get(last)].length() + 1 < 1000) {
+					requestString += "\n" + items[cityItems.get(last)];
+					last++;
+				}
+				String reply = queryCity(city, requestString);
+				String[] replyLines = reply == null ? new String[0] : reply.trim().split("\n");
+				// a reply with fewer lines was cut off by the receive buffer, its last
+				// line may be partial and the items after it may have been applied
+				int complete = replyLines.length;
+				if (reply != null && complete < last - first)
+					complete = Math.max(0, complete - 1);
+				for (int i = first; i < last; i++) {
+					int item = cityItems.get(i);
+					if (reply != null && i - first >= complete) {
+						results[item] = "Result unknown, the reply of city " + city
+								+ " was cut off, check the event schedule";
+					} else if (i - first < replyLines.length) {
+						String[] replyFields = replyLines[i - first].split(";", 2);
+						if (replyFields[0].equals("1"))
+							succeeded++;
+						results[item] = replyFields.length > 1 ? replyFields[1] : "";
+					} else {
+						results[item] = "City " + city + " did not answer";
+					}
+				}
+				first = last;
+			}
+		}
+		return succeeded;
+	}
+
+	/**
+	 * tells if a field of a batch item can be sent in a "B" datagram
+	 * 
+	 * @param field
+	 * @return
+	 */
+	private boolean checkBatchField(String field) {
+		return field != null && field.indexOf(';') < 0 && field.indexOf('\n') < 0;
+	}
+
+	/**
+	 * runs batch items of this city under one lock, looking up the schedules of
+	 * the users once for the whole batch
+	 * 
+	 * @param operation      'R' to reserve, 'C' to cancel
+	 * @param participantIDs
+	 * @param eventIDs       the event ID of each item, null for an item that
+	 *                       could not be read
+	 * @param eventTypes     the event type of each item, unused to cancel
+	 * @return
+	 */
+	private OperationResult[] runBatchLocal(char operation, String[] participantIDs, String[] eventIDs,
+			String[] eventTypes) {
+		OperationResult[] results = new OperationResult[eventIDs.length];
+		HashMap<String, String> schedules = null;
+		if (operation == 'R') {
+			HashSet<String> users = new HashSet<String>();
+			for (int i = 0; i < eventIDs.length; i++) {
+				if (eventIDs[i] != null)
+					users.add(participantIDs[i]);
+			}
+			schedules = getEventSchedulesLocal(users);
+			// the bookings of the users of other cities are fetched now, nothing
+			// is asked over the network while the lock is held
+			Iterator<String> it = users.iterator();
+			while (it.hasNext())
+				getRemoteBookings(it.next());
+		}
+		ServerEvents.EventLock lockEvent = new ServerEvents.EventLock();
+		lockEvent.begin();
+		long waitStart = System.nanoTime();
+		synchronized (this) {
+			long holdStart = System.nanoTime();
+			for (int i = 0; i < eventIDs.length; i++) {
+				String participantID = participantIDs[i];
+				if (eventIDs[i] == null) {
+					results[i] = new OperationResult(false, "Invalid event ID");
+				} else if (operation == 'R') {
+					results[i] = reserve(participantID, eventIDs[i], eventTypes[i], schedules.get(participantID));
+					if (results[i].isSuccess())
+						schedules.put(participantID, schedules.get(participantID) + "\t" + eventIDs[i] + "\n");
+				} else if (operation == 'C') {
+					results[i] = cancel(participantID, eventIDs[i]);
+				} else {
+					results[i] = new OperationResult(false, "Invalid batch operation " + operation);
+				}
+			}
+			lockEvent.end();
+			if (lockEvent.shouldCommit()) {
+				lockEvent.server = serverName;
+				lockEvent.operation = "batch " + operation;
+				lockEvent.eventID = eventIDs.length + " items";
+				lockEvent.waitTime = holdStart - waitStart;
+				lockEvent.holdTime = System.nanoTime() - holdStart;
+				lockEvent.commit();
+			}
+		}
+		return results;
+	}
+
+	public String exchangeTickets(String participantID, String eventID, String newEventID, String newEventType) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("exchangeTickets", getTraceId(), "client");
+		OperationResult result = idempotent("exchangeTickets", participantID,
+				() -> admitted(participantID, () -> exchange(participantID, eventID, newEventID, newEventType)));
+		String[] parameters = { "participantID", "eventID", "newEventID", "newEventType" };
+		updateLog(requestTime, "exchangeTickets", parameters, result.isSuccess(), result.getMessage());
+		stats.record("exchangeTickets", result.isSuccess(), start);
+		tracer.finish("exchangeTickets");
+		return result.getMessage();
+	}
+
+	/**
+	 * moves the booking of a user to another event, of this city or another one
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param newEventID
+	 * @param newEventType
+	 * @return
+	 */
+	private OperationResult exchange(String participantID, String eventID, String newEventID, String newEventType) {
+		boolean success;
+		String resultString = null;
+		if (!checkIDLength(eventID)) {
+			success = false;
+			resultString = "Invalid event ID";
+		} else if (!checkCity(eventID)) {
+			success = false;
+			resultString = "Invalid city";
+		} else if (!checkTime(eventID)) {
+			success = false;
+			resultString = "Invalid time of day";
+		} else if (!checkDate(eventID)) {
+			success = false;
+			resultString = "Invalid date";
+		} else if (!checkEventType(newEventType)) {
+			success = false;
+			resultString = "Invalid event type";
+		} else {
+			Festival tbcEvent = getEvent(eventID);
+			String tbaEventCity = getEventCity(newEventID);
+			OperationResult result;
+			if (tbcEvent == null) {
+				result = new OperationResult(false,
+						"Event " + eventID + " can't be cancelled because it does not exist");
+			} else if (tbaEventCity.equals(serverName)) {
+				Festival tbaEvent = getEvent(newEventID, newEventType);
+				result = exchangeLocal(participantID, eventID, tbcEvent, newEventID, tbaEvent);
+				if (result.isSuccess()) {
+					availabilityChanged(eventID, getEventType(eventID));
+					availabilityChanged(newEventID, newEventType);
+					bookingChanged(participantID, eventID, false);
+					bookingChanged(participantID, newEventID, true);
+					promoteWaiters(eventID, tbcEvent);
+				}
+			} else {
+				// hold the booking so it can't be cancelled or exchanged while the
+				// other city is asked, without keeping the lock over the network
+				result = onEvent("exchangeTickets", eventID, () -> {
+					if (!tbcEvent.isUserBooked(participantID))
+						return new OperationResult(false,
+								"User is not reserved in the to-be-cancelled event " + eventID);
+					if (!tbcEvent.holdBooking(participantID))
+						return new OperationResult(false, "An exchange of event " + eventID
+								+ " is already in progress for user " + participantID);
+					return new OperationResult(true, null);
+				});
+				if (result.isSuccess()) {
+					// X <participantID> <eventID> <eventType>, reserves only if the event
+					// exists, is not full and the user is allowed to reserve it
+					String requestString = "X " + participantID + " " + newEventID + " " + newEventType;
+					String idempotencyKey = newRequestKey();
+					String reply = queryCity(tbaEventCity, requestString, idempotencyKey);
+					if (reply == null) {
+						// the other city may have reserved the new event, the booking
+						// stays held until it answers the same request
+						resolveExchange(participantID, eventID, tbcEvent, newEventID, tbaEventCity, requestString,
+								idempotencyKey, 1);
+						result = new OperationResult(false, "Result unknown, city " + tbaEventCity
+								+ " did not answer, check the event schedule of user " + participantID);
+					} else {
+						result = completeExchange(participantID, eventID, tbcEvent, newEventID, reply);
+					}
+				}
+			}
+			success = result.isSuccess();
+			resultString = result.getMessage();
+		}
+		return new OperationResult(success, resultString);
+	}
+
+	/**
+	 * keeps or drops the held booking of an exchange with another city, from
+	 * the reply of that city to the 'X' request
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param tbcEvent
+	 * @param newEventID
+	 * @param reply
+	 * @return
+	 */
+	private OperationResult completeExchange(String participantID, String eventID, Festival tbcEvent,
+			String newEventID, String reply) {
+		boolean reserved = reply.startsWith("1");
+		onEvent("exchangeTickets", eventID, () -> {
+			tbcEvent.completeHold(participantID, reserved);
+			return null;
+		});
+		if (!reserved)
+			return new OperationResult(false, "Event " + newEventID + " can't be exchanged: " + reply.substring(2));
+		// the other city tells the home city about the new booking
+		availabilityChanged(eventID, getEventType(eventID));
+		bookingChanged(participantID, eventID, false);
+		promoteWaiters(eventID, tbcEvent);
+		return new OperationResult(true, "Exhange successful between event " + eventID + " and event " + newEventID
+				+ " for user " + participantID + " was successful");
+	}
+
+	/**
+	 * sends the 'X' request of an exchange again with the same key after
+	 * exchangeRetryInterval, then completes the exchange once the other city
+	 * answers. The other city answers a request it already applied with its
+	 * first reply, but only for as long as it keeps the key, so the attempts
+	 * stop after the idempotency time to live. The booking then stays held and
+	 * the user is told to have it checked.
+	 * 
+	 * @param participantID
+	 * @param eventID
+	 * @param tbcEvent
+	 * @param newEventID
+	 * @param city
+	 * @param requestString
+	 * @param idempotencyKey
+	 * @param attempt        number of the attempt scheduled
+	 */
+	private void resolveExchange(String participantID, String eventID, Festival tbcEvent, String newEventID,
+			String city, String requestString, String idempotencyKey, int attempt) {
+		exchangeRetries.schedule(() -> {
+			String reply = queryCity(city, requestString, idempotencyKey);
+			if (reply != null) {
+				OperationResult result = completeExchange(participantID, eventID, tbcEvent, newEventID, reply);
+				notifyParticipant(participantID, result.getMessage());
+			} else if (attempt < exchangeRetryLimit) {
+				resolveExchange(participantID, eventID, tbcEvent, newEventID, city, requestString, idempotencyKey,
+						attempt + 1);
+			} else {
+				String message = "Exchange of event " + eventID + " for event " + newEventID + " of user "
+						+ participantID + " was not confirmed by city " + city + ", the booking of event " + eventID
+						+ " stays held until an admin checks it";
+				String[] parameters = { "participantID", "eventID", "newEventID" };
+				updateLog(getTime(), "exchangeTickets", parameters, false, message);
+				notifyParticipant(participantID, message);
+			}
+		}, exchangeRetryInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * moves the booking of a user between two events of this city. The events
+	 * are read without locking, then the move is committed only if neither
+	 * event changed since, otherwise it starts over.
+	 * 
+	 * @return
+	 */
+	private OperationResult exchangeLocal(String participantID, String eventID, Festival tbcEvent, String newEventID,
+			Festival tbaEvent) {
+		if (tbaEvent == null)
+			return new OperationResult(false,
+					"Event " + newEventID + " can't be exchanged because it does not exist");
+		for (int attempt = 0; attempt < MAX_EXCHANGE_ATTEMPTS; attempt++) {
+			long tbcVersion = tbcEvent.getVersion();
+			long tbaVersion = tbaEvent.getVersion();
+			OperationResult rejected;
+			if (!tbcEvent.isUserBooked(participantID))
+				rejected = new OperationResult(false, "User is not reserved in the to-be-cancelled event " + eventID);
+			else if (tbcEvent.isHeld(participantID))
+				rejected = new OperationResult(false,
+						"An exchange of event " + eventID + " is already in progress for user " + participantID);
+			else if (tbaEvent.isUserBooked(participantID))
+				rejected = new OperationResult(false,
+						"User is already reserved to the to-be-added event " + newEventID);
+			else if (tbaEvent.isFull() || tbaEvent.hasWaiters())
+				rejected = new OperationResult(false, "Event " + newEventID + " can't be exchanged because it is full");
+			else
+				rejected = null;
+			if (rejected != null) {
+				if (tbcEvent.getVersion() == tbcVersion && tbaEvent.getVersion() == tbaVersion)
+					return rejected;
+			} else if (Festival.exchange(tbcEvent, tbcVersion, tbaEvent, tbaVersion, participantID)) {
+				return new OperationResult(true, "Exhange successful between event " + eventID + " and event "
+						+ newEventID + " for user " + participantID + " was successful");
+			}
+		}
+		return new OperationResult(false, "Exchange between event " + eventID + " and event " + newEventID
+				+ " was not done because the events kept changing, try again");
+	}
+
+	/**
+	 * runs the work of a request once per idempotency key. A request sent again
+	 * with the key of an earlier one gets the earlier result, or waits for it if
+	 * the earlier one is still running. Requests without a key always run, and
+	 * a busy server or an exception is not kept so the request can be tried
+	 * again.
+	 * 
+	 * @param operation
+	 * @param participantID
+	 * @param work
+	 * @return
+	 */
+	private OperationResult idempotent(String operation, String participantID, Supplier<OperationResult> work) {
+		String idempotencyKey = getRequestHeader("Idempotency-Key");
+		if (idempotencyKey == null)
+			return work.get();
+		String key = operation + " " + participantID + " " + idempotencyKey;
+		CompletableFuture<OperationResult> call = new CompletableFuture<OperationResult>();
+		CompletableFuture<OperationResult> earlier = recentResults.putIfAbsent(key, call);
+		if (earlier != null)
+			return earlier.join();
+		OperationResult result = null;
+		try {
+			result = work.get();
+			return result;
+		} finally {
+			if (result == null || result.getMessage().equals(AdmissionControl.BUSY))
+				recentResults.remove(key, call);
+			call.complete(result != null ? result : new OperationResult(false, AdmissionControl.BUSY));
+		}
+	}
+
+	/**
+	 * runs the work of a participant's request if the participant is under its
+	 * rate and the server is not running too many requests already
+	 * 
+	 * @param participantID
+	 * @param work
+	 * @return what work returned, or a failed result saying the server is busy
+	 */
+	private OperationResult admitted(String participantID, Supplier<OperationResult> work) {
+		if (!admission.admitParticipant(participantID) || !admission.enter())
+			return new OperationResult(false, AdmissionControl.BUSY);
+		try {
+			return work.get();
+		} finally {
+			admission.exit();
+		}
+	}
+
+	/**
+	 * runs work that changes an event, on the thread owning the event when the
+	 * catalog is sharded, otherwise under the server lock
+	 * 
+	 * @param operation name of the operation, for the lock event
+	 * @param eventID
+	 * @param work
+	 * @return what work returned
+	 */
+	private <T> T onEvent(String operation, String eventID, Supplier<T> work) {
+		ServerEvents.EventLock lockEvent = new ServerEvents.EventLock();
+		lockEvent.begin();
+		long spanStart = tracer.start();
+		T result;
+		long waitTime;
+		long holdStart;
+		if (shards != null) {
+			// the wait for the shard thread and the work on it are not told apart
+			result = shards.run(eventID, work::get);
+			tracer.span("shard", spanStart);
+			waitTime = 0;
+			holdStart = spanStart;
+		} else {
+			synchronized (this) {
+				holdStart = tracer.start();
+				waitTime = holdStart - spanStart;
+				tracer.span("lock-wait", spanStart);
+				result = work.get();
+				tracer.span("locked-work", holdStart);
+			}
+		}
+		lockEvent.end();
+		if (lockEvent.shouldCommit()) {
+			lockEvent.server = serverName;
+			lockEvent.operation = operation;
+			lockEvent.eventID = eventID;
+			lockEvent.sharded = shards != null;
+			lockEvent.waitTime = waitTime;
+			lockEvent.holdTime = System.nanoTime() - holdStart;
+			lockEvent.commit();
+		}
+		return result;
+	}
+
+	private void updateLog(String time, String requestType, String[] requestParameters, boolean success,
+			String response) {
+		ServerEvents.LogWrite logEvent = new ServerEvents.LogWrite();
+		logEvent.begin();
+		long logStart = tracer.start();
+		try {
+			FileWriter writer = new FileWriter(logFile.getName(), true);
+			writer.append("----------------------------------------\n");
+			writer.append("Date and time: " + time + "\n");
+			writer.append("Request type: " + requestType + System.lineSeparator());
+			String rp = "";
+			for (int i = 0; i < requestParameters.length; i++) {
+				if (i == 0)
+					rp += "Request parameters: " + requestParameters[i];
+				else
+					rp += ", " + requestParameters[i];
+			}
+			writer.write(rp + "\n");
+			writer.write("Success: " + success + "\n");
+			writer.write("Server response: " + response + "\n");
+			writer.write("\n");
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Writing to file error.");
+			e.printStackTrace();
+		}
+		tracer.span("logging", logStart);
+		logEvent.end();
+		if (logEvent.shouldCommit()) {
+			logEvent.server = serverName;
+			logEvent.requestType = requestType;
+			logEvent.success = success;
+			logEvent.commit();
+		}
+	}
+
+	/**
+	 * check if database has the event id
+	 * 
+	 * @param eventID
+	 * @return null if database does not have the eventID, otherwise returns the
+	 *         object
+	 */
+	public Festival getEvent(String eventID) {
+		Festival festival = null;
+		// the event maps take no null key
+		if (eventID == null)
+			return null;
+		Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ConcurrentHashMap<String, Festival>> eventPair = it.next();
+			festival = eventPair.getValue().get(eventID);
+			if (festival != null)
+				break;
+		}
+		return festival;
+	}
+
+	/**
+	 * check if the event type has the event id in the database
+	 * 
+	 * @param eventID
+	 * @param eventType
+	 * @return
+	 */
+	public Festival getEvent(String eventID, String eventType) {
+		Festival festival = null;
+		ConcurrentHashMap<String, Festival> eventTypeMap = database.get(eventType);
+		if (eventID != null)
+			festival = eventTypeMap.get(eventID);
+		return festival;
+	}
+
+	/**
+	 * gets the trace id of the request being handled, sent by the client in the
+	 * X-Trace-Id HTTP header
+	 * 
+	 * @return null if there is none
+	 */
+	private String getTraceId() {
+		String traceId = tracer.getTraceId();
+		if (traceId != null)
+			return traceId;
+		return getRequestHeader("X-Trace-Id");
+	}
+
+	/**
+	 * gets an HTTP header of the SOAP request being handled
+	 * 
+	 * @param name
+	 * @return null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	private String getRequestHeader(String name) {
+		if (wsContext == null)
+			return null;
+		try {
+			Map<String, List<String>> headers = (Map<String, List<String>>) wsContext.getMessageContext()
+					.get(MessageContext.HTTP_REQUEST_HEADERS);
+			if (headers == null)
+				return null;
+			Iterator<Map.Entry<String, List<String>>> it = headers.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, List<String>> headerPair = it.next();
+				List<String> values = headerPair.getValue();
+				if (name.equalsIgnoreCase(headerPair.getKey()) && values != null && !values.isEmpty())
+					return values.get(0);
+			}
+		} catch (IllegalStateException e) {
+			// not called through SOAP
+		}
+		return null;
+	}
+
+	/**
+	 * gets the event type that holds the event id
+	 * 
+	 * @param eventID
+	 * @return null if no event type has the event id
+	 */
+	public String getEventType(String eventID) {
+		if (eventID == null)
+			return null;
+		Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ConcurrentHashMap<String, Festival>> eventPair = it.next();
+			if (eventPair.getValue().containsKey(eventID))
+				return eventPair.getKey();
+		}
+		return null;
+	}
+
+	/**
+	 * gets the city from the event id
+	 * 
+	 * @param eventID
+	 * @return
+	 */
+	private String getEventCity(String eventID) {
+		return eventID.substring(0, 3);
+	}
+
+	private String getTime() {
+		LocalDateTime rawDateTime = LocalDateTime.now();
+		DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+		String dateTime = rawDateTime.format(formatter);
+
+		return dateTime;
+	}
+
+	private boolean checkEventType(String eventType) {
+		return eventType.equals("Concerts") || eventType.equals("Art Gallery") || eventType.equals("Theatre");
+	}
+
+	private boolean checkIDLength(String eventID) {
+		return eventID.length() == 10;
+	}
+
+	@Override
+	public boolean checkCity(String eventID) {
+		String city = eventID.substring(0, 3);
+		return city.equals("MTL") || city.equals("TOR") || city.equals("VAN");
+	}
+
+	private boolean checkTime(String eventID) {
+		char time = eventID.charAt(3);
+		return time == 'A' || time == 'M' || time == 'E';
+	}
+
+	private boolean checkDate(String eventID) {
+		String date = eventID.substring(4);
+		int day, month, year;
+		try {
+			day = Integer.parseInt(date.substring(0, 2));
+			month = Integer.parseInt(date.substring(2, 4));
+			year = Integer.parseInt(date.substring(4));
+			if (day < 0 || day > 30 || month < 0 || month > 12 || year < 0 || year > 25)
+				return false;
+			else
+				return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * archives the past events now and then every interval
+	 * 
+	 * @param interval      milliseconds between runs
+	 * @param retentionDays how many days an event stays in the database after
+	 *                      its date
+	 */
+	private void startArchiver(long interval, int retentionDays) {
+		Thread archiver = new Thread(() -> {
+			while (true) {
+				archivePastEvents(LocalDate.now().toEpochDay() - retentionDays);
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, serverName + "-archiver");
+		archiver.setDaemon(true);
+		archiver.start();
+	}
+
+	/**
+	 * moves the events before a day, with their bookings, from the database to
+	 * a new archive segment
+	 * 
+	 * @param beforeDay days since 1970-01-01
+	 * @return the number of events archived
+	 */
+	public int archivePastEvents(long beforeDay) {
+		ArrayList<String> lines = new ArrayList<String>();
+		ArrayList<String[]> archived = new ArrayList<String[]>();
+		ArrayList<Festival> festivals = new ArrayList<Festival>();
+		Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ConcurrentHashMap<String, Festival>> typePair = it.next();
+			String eventType = typePair.getKey();
+			ConcurrentHashMap<String, Festival> event = typePair.getValue();
+			ArrayList<String> eventIDs = calendar.before(eventType, beforeDay);
+			for (int i = 0; i < eventIDs.size(); i++) {
+				String eventID = eventIDs.get(i);
+				Festival festival = onEvent("archiveEvent", eventID, () -> {
+					synchronized (catalogLock) {
+						calendar.remove(eventID, eventType);
+						return event.remove(eventID);
+					}
+				});
+				if (festival == null)
+					continue;
+				lines.add(eventID + ";" + eventType + ";" + festival.getCapacity() + ";" + festival.getBooked() + ";"
+						+ String.join(",", festival.getBookings()));
+				archived.add(new String[] { eventID, eventType });
+				festivals.add(festival);
+			}
+		}
+		if (archived.isEmpty())
+			return 0;
+
+		String[] parameters = { "beforeDay" };
+		try {
+			archive.write(lines);
+		} catch (IOException e) {
+			// put the events back, they are not lost
+			for (int i = 0; i < archived.size(); i++) {
+				String eventID = archived.get(i)[0];
+				String eventType = archived.get(i)[1];
+				Festival festival = festivals.get(i);
+				onEvent("archiveEvent", eventID, () -> {
+					synchronized (catalogLock) {
+						database.get(eventType).put(eventID, festival);
+						calendar.add(eventID, eventType);
+						return null;
+					}
+				});
+			}
+			updateLog(getTime(), "archivePastEvents", parameters, false,
+					"Archiving " + archived.size() + " events failed: " + e.getMessage());
+			return 0;
+		}
+		for (int i = 0; i < archived.size(); i++)
+			availabilityChanged(archived.get(i)[0], archived.get(i)[1]);
+		updateLog(getTime(), "archivePastEvents", parameters, true, "Archived " + archived.size() + " events");
+		return archived.size();
+	}
+
+	@Override
+	public String getArchivedEvents(String key) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("getArchivedEvents", getTraceId(), "client");
+		boolean success;
+		String result = "";
+		String resultString;
+		try {
+			ArrayList<String> found = archive.search(key);
+			for (int i = 0; i < found.size(); i++) {
+				String[] fields = found.get(i).split(";", 5);
+				result += "\t" + fields[0] + " " + fields[1] + " capacity " + fields[2] + " booked " + fields[3];
+				// the whole roster only when asking for the event
+				if (fields[0].equals(key))
+					result += " by " + fields[4];
+				result += "\n";
+			}
+			success = true;
+			resultString = "Found " + found.size() + " archived events for " + key;
+		} catch (IOException e) {
+			success = false;
+			resultString = "Reading the archive failed: " + e.getMessage();
+		}
+		String[] parameters = { "key" };
+		updateLog(requestTime, "getArchivedEvents", parameters, success, resultString);
+		stats.record("getArchivedEvents", success, start);
+		tracer.finish("getArchivedEvents");
+		if (success && !result.isEmpty())
+			return result;
+		else
+			return resultString;
+	}
+
+	@Override
+	public String subscribe(String topic, String callbackHost, int callbackPort) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("subscribe", getTraceId(), "client");
+		boolean success = false;
+		String resultString;
+		if (!checkEventType(topic) && !(checkIDLength(topic) && getEventCity(topic).equals(serverName))) {
+			resultString = "Invalid topic, give an event type or an event ID of " + serverName;
+		} else if (callbackPort <= 0 || callbackPort > 65535) {
+			resultString = "Invalid port " + callbackPort;
+		} else {
+			try {
+				String id = subscriptions.subscribe(topic, callbackHost, callbackPort);
+				success = true;
+				resultString = "Subscription " + id + " to " + topic + " pushes to " + callbackHost + ":"
+						+ callbackPort;
+			} catch (IOException e) {
+				resultString = "Unknown host " + callbackHost;
+			}
+		}
+		String[] parameters = { "topic", "callbackHost", "callbackPort" };
+		updateLog(requestTime, "subscribe", parameters, success, resultString);
+		stats.record("subscribe", success, start);
+		tracer.finish("subscribe");
+		return resultString;
+	}
+
+	@Override
+	public String unsubscribe(String subscriptionID) {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("unsubscribe", getTraceId(), "client");
+		boolean success = subscriptions.unsubscribe(subscriptionID);
+		String resultString = success ? "Subscription " + subscriptionID + " removed"
+				: "Subscription " + subscriptionID + " does not exist";
+		String[] parameters = { "subscriptionID" };
+		updateLog(requestTime, "unsubscribe", parameters, success, resultString);
+		stats.record("unsubscribe", success, start);
+		tracer.finish("unsubscribe");
+		return resultString;
+	}
+
+	@Override
+	public String getOccupancySummary() {
+		String requestTime = getTime();
+		long start = System.nanoTime();
+		tracer.begin("getOccupancySummary", getTraceId(), "client");
+		// the other cities are asked at the same time
+		String[] otherCities = getOtherCities();
+		ArrayList<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < otherCities.length; i++) {
+			String city = otherCities[i];
+			replies.add(askCity(city, "O"));
+		}
+
+		long[] all = new long[5];
+		String result = addOccupancy(serverName, getOccupancySummaryLocal(), all);
+		boolean success = true;
+		long deadline = System.currentTimeMillis() + peerTimeout;
+		for (int i = 0; i < otherCities.length; i++) {
+			String reply = awaitReply(replies.get(i), deadline);
+			if (reply == null) {
+				success = false;
+				result += otherCities[i] + " did not answer\n";
+			} else {
+				result += addOccupancy(otherCities[i], reply, all);
 			}
 		}
-		String[] parameters = { "participantID", "eventID" };
-		updateLog(requestTime, "cancelTicket", parameters, success, resultString);
-		return resultString;
+		result += "All cities: events=" + all[0] + " offered=" + all[1] + " booked=" + all[2] + " remaining="
+				+ all[3] + " soldOut=" + all[4] + "\n";
+		String[] parameters = {};
+		updateLog(requestTime, "getOccupancySummary", parameters, success,
+				success ? "Got occupancy summary" : "Got occupancy summary without every city");
+		stats.record("getOccupancySummary", success, start);
+		tracer.finish("getOccupancySummary");
+		return result;
+	}
+
+	/**
+	 * formats the totals of a city and adds them to the totals of all cities
+	 * 
+	 * @param city
+	 * @param summary lines in the format of getOccupancySummaryLocal
+	 * @param all     events, offered, booked, remaining and sold out so far
+	 * @return
+	 */
+	private String addOccupancy(String city, String summary, long[] all) {
+		String result = "";
+		String[] lines = summary.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			String[] fields = lines[i].trim().split(";");
+			if (fields.length != 6)
+				continue;
+			for (int j = 0; j < all.length; j++)
+				all[j] += Long.parseLong(fields[j + 1]);
+			result += city + " " + fields[0] + ": events=" + fields[1] + " offered=" + fields[2] + " booked="
+					+ fields[3] + " remaining=" + fields[4] + " soldOut=" + fields[5] + "\n";
+		}
+		return result;
+	}
+
+	/**
+	 * gets the totals of this city, from the counters and not the catalog
+	 * 
+	 * @return one "eventType;events;offered;taken;remaining;soldOut" line per
+	 *         event type
+	 */
+	public String getOccupancySummaryLocal() {
+		ArrayList<String> eventTypes = new ArrayList<String>(database.keySet());
+		eventTypes.sort(null);
+		String result = "";
+		for (int i = 0; i < eventTypes.size(); i++)
+			result += occupancy.getSummary(eventTypes.get(i)) + "\n";
+		return result;
+	}
+
+	@Override
+	public String getStats() {
+		return serverName + " operations (microseconds):\n" + stats.report("") + serverName
+				+ " transport (microseconds):\n" + transportStats.report() + serverName + " admission:\n"
+				+ admission.report() + serverName + " followers:\n" + mutationLog.report();
+	}
+
+	@Override
+	public String showOptions(boolean isUserAdmin) {
+		int choice = -1;
+		String options;
+		if (isUserAdmin) {
+			options = "\t1. Add reservation slot\n" + "\t2. Remove reservation slot\n"
+					+ "\t3. List reservation slot available\n" + "\t4. Reserve ticket\n" + "\t5. Get event schedule\n"
+					+ "\t6. Cancel ticket\n" + "\t7. Exchange ticket\n" + "\t8. Reserve tickets for a group\n"
+					+ "\t9. Import reservation slots\n" + "\t10. Join the waitlist of an event\n"
+					+ "\t11. Get notifications\n" + "\t12. List reservation slots between two dates\n"
+					+ "\t13. Search archived events\n" + "\t14. Hold ticket\n" + "\t15. Confirm held ticket\n"
+					+ "\t16. Release held ticket\n" + "\t17. Get occupancy summary\n"
+					+ "\t18. Find available slots on a date\n" + "\tEnter 0 to exit.";
+
+		} else {
+			options = "\t1. Reserve ticket\n" + "\t2. Get event schedule\n" + "\t3. Cancel ticket\n"
+					+ "\t4. Exchange ticket\n" + "\t5. Join the waitlist of an event\n" + "\t6. Get notifications\n"
+					+ "\t7. List reservation slots between two dates\n" + "\t8. Search my archived events\n"
+					+ "\t9. Hold ticket\n" + "\t10. Confirm held ticket\n" + "\t11. Release held ticket\n"
+					+ "\t12. Find available slots on a date\n" + "\tEnter 0 to exit.";
+		}
+		return options;
+	}
+
+	@Override
+	public boolean isAdmin(String userID) {
+		return userID.charAt(3) == 'A';
+	}
+
+	private String getServerName() {
+		return serverName.substring(0, 3);
+	}
+
+	private int getCityPort(String city) {
+		if (city.equals("MTL"))
+			return 5000;
+		else if (city.equals("TOR"))
+			return 5001;
+		else
+			return 5002;
+	}
+
+	private String[] getOtherCities() {
+		if (serverName.equals("MTL"))
+			return new String[] { "TOR", "VAN" };
+		else if (serverName.equals("TOR"))
+			return new String[] { "MTL", "VAN" };
+		else
+			return new String[] { "MTL", "TOR" };
+	}
+
+	/**
+	 * sends a request to one city and waits for its reply
+	 * 
+	 * @param city
+	 * @param requestString
+	 * @return the reply, or null if the city could not be reached
+	 */
+	private String queryCity(String city, String requestString) {
+		return queryCity(city, requestString, null);
+	}
+
+	/**
+	 * sends a request to one city with a given idempotency key, so it can be
+	 * sent again later without being applied twice
+	 * 
+	 * @param city
+	 * @param requestString
+	 * @param idempotencyKey the key, or null to make one if the request is not
+	 *                       read-only
+	 * @return the reply, or null if the city could not be reached
+	 */
+	private String queryCity(String city, String requestString, String idempotencyKey) {
+		DatagramSocket aSocket = null;
+		try {
+			aSocket = new DatagramSocket();
+			byte[] m = requestString.getBytes();
+			InetAddress host = InetAddress.getByName("localhost");
+			String reply = sendPacketToOneCity(aSocket, m, requestString, host, city, idempotencyKey);
+			// the city turned the request away, same as if it did not answer
+			if (reply.equals(AdmissionControl.BUSY))
+				return null;
+			return reply;
+		} catch (SocketException e) {
+			System.out.println("Socket: " + e.getMessage());
+		} catch (IOException e) {
+			System.out.println("IO: " + e.getMessage());
+		} finally {
+			if (aSocket != null)
+				aSocket.close();
+		}
+		return null;
 	}
 
-	public String exchangeTickets(String participantID, String eventID, String newEventID, String newEventType) {
-		String requestTime = getTime();
-		boolean success;
-		String resultString = null;
-		if (!checkIDLength(eventID)) {
-			success = false;
-			resultString = "Invalid event ID";
-		} else if (!checkCity(eventID)) {
-			success = false;
-			resultString = "Invalid city";
-		} else if (!checkTime(eventID)) {
-			success = false;
-			resultString = "Invalid time of day";
-		} else if (!checkDate(eventID)) {
-			success = false;
-			resultString = "Invalid date";
-		} else if (!checkEventType(newEventType)) {
-			success = false;
-			resultString = "Invalid event type";
-		} else {
-			Festival tbcEvent = getEvent(eventID);
-			synchronized (this) {
-				if (tbcEvent != null) {
-					boolean tbcEventContainsUser = tbcEvent.isUserBooked(participantID);
-					if (tbcEventContainsUser) {
-						String tbaEventCity = getEventCity(newEventID);
-						if (tbaEventCity.equals(serverName)) {
-							Festival tbaEvent = getEvent(newEventID, newEventType);
-							if (tbaEvent != null) {
-								boolean tbaEventContainsUser = tbaEvent.isUserBooked(participantID);
-								if (!tbaEventContainsUser) {
-									synchronized (this) {
-										tbcEvent.removeBookings(participantID);
-										tbaEvent.addBookings(participantID);
-									}
-									success = true;
-									resultString = "Exhange successful between event " + eventID + " and event "
-											+ newEventID + " for user " + participantID + " was successful";
-								} else {
-									success = false;
-									resultString = "User is already reserved to the to-be-added event " + newEventID;
-								}
-							} else {
-								success = false;
-								resultString = "Event " + newEventID + " can't be exchanged because it does not exist";
-							}
-						} else {
-							// UDP section
-							String result = "";
-							DatagramSocket aSocket = null;
-							try {
-								aSocket = new DatagramSocket();
-								String requestString = "C " + participantID + " " + newEventID + " " + newEventType;
-								byte[] m = requestString.getBytes();
-								InetAddress host = InetAddress.getByName("localhost");
-								result += sendPacketToOneCity(aSocket, m, requestString, host, tbaEventCity);
-							} catch (SocketException e) {
-								System.out.println("Socket: " + e.getMessage());
-							} catch (IOException e) {
-								System.out.println("IO: " + e.getMessage());
-							} finally {
-								if (aSocket != null)
-									aSocket.close();
-							}
-
-							// Process Received Response
-							String[] resultArr = result.split(" ");
-							boolean tbaEventExists = Integer.parseInt(resultArr[0]) == 1 ? true : false;
-							boolean tbaEventContainsUser = Integer.parseInt(resultArr[1]) == 1 ? true : false;
-
-							if (tbaEventExists) {
-								if (!tbaEventContainsUser) {
-									synchronized (this) {
-										tbcEvent.removeBookings(participantID);
-										try {
-											aSocket = new DatagramSocket();
-											String requestString = "R " + participantID + " " + newEventID + " "
-													+ newEventType;
-											byte[] m = requestString.getBytes();
-											InetAddress host = InetAddress.getByName("localhost");
-											result += sendPacketToOneCity(aSocket, m, requestString, host,
-													tbaEventCity);
-										} catch (SocketException e) {
-											System.out.println("Socket: " + e.getMessage());
-										} catch (IOException e) {
-											System.out.println("IO: " + e.getMessage());
-										} finally {
-											if (aSocket != null)
-												aSocket.close();
-										}
-									}
-									success = true;
-									resultString = "Exhange successful between event " + eventID + " and event "
-											+ newEventID + " for user " + participantID + " was successful";
-								} else {
-									success = false;
-									resultString = "User is already reserved to the to-be-added event " + newEventID;
-								}
-							} else {
-								success = false;
-								resultString = "Event " + newEventID + " can't be exchanged because it does not exist";
-							}
-						}
-					} else {
-						success = false;
-						resultString = "User is not reserved in the to-be-cancelled event " + eventID;
-					}
-				} else {
-					success = false;
-					resultString = "Event " + eventID + " can't be cancelled because it does not exist";
-				}
-			}
+	/**
+	 * sends a read-only request to one city, sharing the reply with the threads
+	 * already waiting on the same request to the same city
+	 * 
+	 * @param city
+	 * @param requestString
+	 * @return the reply, or null if the city could not be reached
+	 */
+	private String queryCityShared(String city, String requestString) {
+		String key = city + " " + requestString;
+		CompletableFuture<String> call = new CompletableFuture<String>();
+		CompletableFuture<String> inFlight = inFlightQueries.putIfAbsent(key, call);
+		if (inFlight != null)
+			return inFlight.join();
+		try {
+			call.complete(queryCity(city, requestString));
+		} catch (RuntimeException e) {
+			call.complete(null);
+			throw e;
+		} finally {
+			inFlightQueries.remove(key, call);
 		}
-		String[] parameters = { "participantID", "eventID", "newEventID", "newEventType" };
-		updateLog(requestTime, "exchangeTickets", parameters, success, resultString);
-		return resultString;
+		return call.join();
 	}
 
-	private void updateLog(String time, String requestType, String[] requestParameters, boolean success,
-			String response) {
+	/**
+	 * sends a read-only request to one city on a thread for the other cities
+	 * 
+	 * @param city
+	 * @param requestString
+	 * @return the reply, null if the city could not be reached
+	 */
+	private CompletableFuture<String> askCity(String city, String requestString) {
+		return CompletableFuture.supplyAsync(() -> queryCityShared(city, requestString), peerQueries);
+	}
+
+	/**
+	 * waits for the reply of a city until the deadline
+	 * 
+	 * @param reply
+	 * @param deadline time in milliseconds the request stops waiting
+	 * @return the reply, or null if the city did not answer in time
+	 */
+	private String awaitReply(CompletableFuture<String> reply, long deadline) {
 		try {
-			FileWriter writer = new FileWriter(logFile.getName(), true);
-			writer.append("----------------------------------------\n");
-			writer.append("Date and time: " + time + "\n");
-			writer.append("Request type: " + requestType + System.lineSeparator());
-			String rp = "";
-			for (int i = 0; i < requestParameters.length; i++) {
-				if (i == 0)
-					rp += "Request parameters: " + requestParameters[i];
-				else
-					rp += ", " + requestParameters[i];
+			return reply.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * sends a request to every other city without waiting for a reply
+	 * 
+	 * @param requestString
+	 */
+	private void notifyOtherCities(String requestString) {
+		notifyCities(getOtherCities(), requestString);
+	}
+
+	/**
+	 * sends a request to some cities without waiting for a reply
+	 * 
+	 * @param otherCities
+	 * @param requestString
+	 */
+	private void notifyCities(String[] otherCities, String requestString) {
+		DatagramSocket aSocket = null;
+		try {
+			aSocket = new DatagramSocket();
+			byte[] m = requestString.getBytes();
+			InetAddress host = InetAddress.getByName("localhost");
+			for (int i = 0; i < otherCities.length; i++) {
+				aSocket.send(new DatagramPacket(m, m.length, host, getCityPort(otherCities[i])));
+				transportStats.peer(otherCities[i]).sent(m.length);
 			}
-			writer.write(rp + "\n");
-			writer.write("Success: " + success + "\n");
-			writer.write("Server response: " + response + "\n");
-			writer.write("\n");
-			writer.close();
+		} catch (SocketException e) {
+			System.out.println("Socket: " + e.getMessage());
 		} catch (IOException e) {
-			System.out.println("Writing to file error.");
-			e.printStackTrace();
+			System.out.println("IO: " + e.getMessage());
+		} finally {
+			if (aSocket != null)
+				aSocket.close();
 		}
 	}
 
 	/**
-	 * check if database has the event id
+	 * called after an event was added, removed or its seat count changed
 	 * 
 	 * @param eventID
-	 * @return null if database does not have the eventID, otherwise returns the
-	 *         object
+	 * @param eventType
 	 */
-	public Festival getEvent(String eventID) {
-		Festival festival = null;
-		Iterator it = database.entrySet().iterator();
-		while (it.hasNext()) {
-			Map.Entry eventPair = (Map.Entry) it.next();
-			festival = ((HashMap<String, Festival>) eventPair.getValue()).get(eventID);
-			if (festival != null)
-				break;
-		}
-		return festival;
+	private void availabilityChanged(String eventID, String eventType) {
+		if (eventType == null)
+			return;
+		Festival festival = getEvent(eventID, eventType);
+		mutationLog.changed(eventID, eventType, festival == null);
+		occupancy.update(eventID, eventType, festival);
+		subscriptions.changed(eventID, eventType);
+		// the replicas of the other cities drop their cached entry when the
+		// change reaches them, no separate invalidation needed
+		if (replicationEnabled)
+			availabilityPublisher.changed(eventID, eventType);
+		else if (pushInvalidations)
+			notifyOtherCities("I " + serverName + " " + eventType);
 	}
 
 	/**
-	 * check if the event type has the event id in the database
+	 * gets the availability of the events of a type after an event ID, in
+	 * order of event ID, as much as fits in a datagram. The reply is
+	 * 
+	 * <pre>
+	 * &lt;epoch&gt; &lt;seq&gt; [+]
+	 * &lt;eventID&gt; &lt;remaining&gt;
+	 * ...
+	 * </pre>
+	 * 
+	 * with + when there are more events after the last one.
 	 * 
-	 * @param eventID
 	 * @param eventType
+	 * @param after     the last event ID of the previous page, empty for the
+	 *                  first page
 	 * @return
 	 */
-	public Festival getEvent(String eventID, String eventType) {
-		Festival festival = null;
-		HashMap<String, Festival> eventTypeMap = database.get(eventType);
-		festival = eventTypeMap.get(eventID);
-		return festival;
+	private String getSnapshotPage(String eventType, String after) {
+		String header;
+		// the events are read after the sequence number, they are at least as new
+		synchronized (availabilityPublisher) {
+			header = availabilityPublisher.getEpoch() + " " + availabilityPublisher.getSeq();
+		}
+		TreeMap<String, Integer> events = new TreeMap<String, Integer>();
+		Iterator<Map.Entry<String, Festival>> it = database.get(eventType).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Festival> eventPair = it.next();
+			String eventID = eventPair.getKey();
+			if (eventID.compareTo(after) > 0)
+				events.put(eventID, eventPair.getValue().getRemaining());
+		}
+		String lines = "";
+		Iterator<Map.Entry<String, Integer>> pageIt = events.entrySet().iterator();
+		while (pageIt.hasNext()) {
+			Map.Entry<String, Integer> eventPair = pageIt.next();
+			String line = "\t" + eventPair.getKey() + " " + eventPair.getValue() + "\n";
+			if (header.length() + 3 + lines.length() + line.length() > MAX_SNAPSHOT_DATAGRAM) {
+				header += " +";
+				break;
+			}
+			lines += line;
+		}
+		return header + "\n" + lines;
 	}
 
 	/**
-	 * gets the city from the event id
+	 * handles the inter-server requests that are not handled by the city server
+	 * itself
 	 * 
-	 * @param eventID
-	 * @return
+	 * @param requestString
+	 * @return the reply to send back, or null if the request needs no reply
 	 */
-	private String getEventCity(String eventID) {
-		return eventID.substring(0, 3);
+	public String handlePeerRequest(String requestString) {
+		peerThread = Thread.currentThread();
+		if (requestString.charAt(0) == 'I') {
+			// I <city> <eventType>
+			String city = requestString.substring(2, 5);
+			String eventType = requestString.substring(6);
+			availabilityCache.invalidate(city, eventType);
+		} else if (requestString.charAt(0) == 'D') {
+			// D <city> <epoch> <seq>, followed by the changed events
+			if (replicationEnabled)
+				availabilityReplica.receive(requestString);
+		} else if (requestString.charAt(0) == 'Y') {
+			// Y <eventType>[;<after eventID>], page of a snapshot for a replica that
+			// lost track
+			if (!replicationEnabled)
+				return "0 0\n";
+			String[] fields = requestString.substring(2).split(";", 2);
+			if (!checkEventType(fields[0]))
+				return null;
+			return getSnapshotPage(fields[0], fields.length > 1 ? fields[1] : "");
+		} else if (requestString.charAt(0) == 'B') {
+			// B <operation>, followed by "participantID;eventID[;eventType]" per line,
+			// answers "1;<message>" or "0;<message>" per line
+			String requestTime = getTime();
+			String[] lines = requestString.split("\n");
+			char operation = lines[0].charAt(2);
+			String[] participantIDs = new String[lines.length - 1];
+			String[] eventIDs = new String[lines.length - 1];
+			String[] eventTypes = new String[lines.length - 1];
+			for (int i = 1; i < lines.length; i++) {
+				String[] fields = lines[i].split(";", -1);
+				// an item with the wrong number of fields is answered as invalid
+				if (fields.length == (operation == 'R' ? 3 : 2) && fields[0].length() >= 3) {
+					participantIDs[i - 1] = fields[0];
+					eventIDs[i - 1] = fields[1];
+					eventTypes[i - 1] = operation == 'R' ? fields[2] : null;
+				}
+			}
+			OperationResult[] results = runBatchLocal(operation, participantIDs, eventIDs, eventTypes);
+			String reply = "";
+			int succeeded = 0;
+			for (int i = 0; i < results.length; i++) {
+				if (results[i].isSuccess())
+					succeeded++;
+				reply += (results[i].isSuccess() ? "1;" : "0;") + results[i].getMessage() + "\n";
+			}
+			String[] parameters = { "operation", "items" };
+			updateLog(requestTime, operation == 'R' ? "reserveTickets" : "cancelTickets", parameters,
+					succeeded == results.length, "Batch of " + results.length + " from another city, " + succeeded
+							+ " succeeded");
+			return reply;
+		} else if (requestString.charAt(0) == 'L') {
+			// L <eventType>;<fromDate>;<toDate>, the reply must fit in the receive
+			// buffer, a "..." line tells the rest was left out
+			String[] fields = requestString.substring(2).split(";");
+			if (fields.length != 3 || !checkEventType(fields[0]))
+				return "";
+			return listReservationSlotsBetweenLocal(fields[0], EventCalendar.getDay(fields[1]),
+					EventCalendar.getDay(fields[2]), 990);
+		} else if (requestString.charAt(0) == 'N') {
+			// N <participantID> <message>, message for a user of this city
+			String participantID = requestString.substring(2, 10);
+			addNotification(participantID, requestString.substring(11));
+		} else if (requestString.charAt(0) == 'S') {
+			// S [<operation prefix>], the reply must fit in 1000 bytes so it can be
+			// narrowed down to some operations
+			String prefix = requestString.length() > 2 ? requestString.substring(2) : "";
+			String report = stats.report(prefix);
+			if ("peer".startsWith(prefix))
+				report += transportStats.report();
+			if (!follower && "follower".startsWith(prefix))
+				report += mutationLog.report();
+			return report;
+		} else if (requestString.charAt(0) == 'Q') {
+			// Q <eventType>;<date>;<count>, first available events of the type on
+			// the date
+			String[] fields = requestString.substring(2).split(";");
+			if (fields.length != 3 || !checkEventType(fields[0]))
+				return "";
+			return findAvailableSlotsLocal(fields[0], EventCalendar.getDay(fields[1]),
+					Math.min(Integer.parseInt(fields[2]), MAX_FIND_COUNT));
+		} else if (requestString.charAt(0) == 'W') {
+			// W <+|-|=|?> <participantID> [<eventID>,...], bookings of a user in the
+			// cities other than its own, see RemoteBookings
+			String[] fields = requestString.split(" ");
+			if (fields.length < 3)
+				return null;
+			char change = fields[1].charAt(0);
+			String participantID = fields[2];
+			String events = fields.length > 3 ? fields[3] : "";
+			boolean isHome = participantID.startsWith(serverName);
+			if (change == '?') {
+				if (!isHome)
+					return "W ";
+				// rebuilt in the background, the other cities may be waiting on
+				// this one
+				if (remoteBookings.startRebuild(participantID))
+					CompletableFuture.runAsync(
+							() -> remoteBookings.rebuilt(participantID, readRemoteBookings(participantID)));
+				String list = remoteBookings.getHome(participantID);
+				return list == null ? "W !" : "W " + list;
+			}
+			if (change == '=' && !isHome) {
+				remoteBookings.updateCached(participantID, events);
+			} else if ((change == '+' || change == '-') && isHome && !events.isEmpty()) {
+				String list = remoteBookings.change(participantID, events, change == '+');
+				notifyOtherCities("W = " + participantID + " " + list);
+				return "W " + list;
+			}
+		} else if (requestString.charAt(0) == 'O') {
+			// O, totals of this city, one "eventType;events;offered;taken;remaining;soldOut"
+			// line per event type
+			return getOccupancySummaryLocal();
+		} else if (requestString.charAt(0) == 'F') {
+			// F <follower> <epoch> <seq>, events changed since the follower's last
+			// request
+			String[] fields = requestString.split(" ");
+			if (fields.length != 4)
+				return null;
+			return getMutations(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+		} else if (requestString.charAt(0) == 'X') {
+			// X <participantID> <eventID> <eventType>, conditional reserve of an
+			// exchange, answers "1 <message>" or "0 <message>"
+			String[] requestStringArr = requestString.split(" ", 4);
+			String participantID = requestStringArr[1];
+			String eventID = requestStringArr[2];
+			String eventType = requestStringArr[3];
+			String requestTime = getTime();
+			OperationResult result = reserve(participantID, eventID, eventType, null);
+			String[] parameters = { "participantID", "eventID", "eventType" };
+			updateLog(requestTime, "reserveTicket", parameters, result.isSuccess(), result.getMessage());
+			return (result.isSuccess() ? "1 " : "0 ") + result.getMessage();
+		}
+		return null;
 	}
 
-	private String getTime() {
-		LocalDateTime rawDateTime = LocalDateTime.now();
-		DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
-		String dateTime = rawDateTime.format(formatter);
+	private String sendPacketToOneCity(DatagramSocket aSocket, byte[] m, String temp, InetAddress host, String city)
+			throws IOException {
+		return sendPacketToOneCity(aSocket, m, temp, host, city, null);
+	}
 
-		return dateTime;
+	private String sendPacketToOneCity(DatagramSocket aSocket, byte[] m, String temp, InetAddress host, String city,
+			String idempotencyKey) throws IOException {
+		String result = "";
+		int serverPort = getCityPort(city);
+		// A, P and O only read the catalog, the follower of the city answers
+		// them when there is one
+		Integer followerPort = Integer.getInteger("follower." + city + ".port");
+		if (followerPort != null && (temp.charAt(0) == 'A' || temp.charAt(0) == 'P' || temp.charAt(0) == 'O'))
+			serverPort = followerPort;
+		TransportStats.Peer peer = transportStats.peer(city);
+		int attempts = 1 + udpRetries;
+		aSocket.setSoTimeout(udpTimeout);
+		// K <key> <request>, a request that changes something carries a key so
+		// the other city answers a copy sent again with its first reply instead
+		// of applying it twice
+		String request = temp;
+		if (idempotencyKey == null && !isReadOnlyRequest(temp))
+			idempotencyKey = newRequestKey();
+		if (idempotencyKey != null)
+			request = "K " + idempotencyKey + " " + temp;
+		// T <origin city> <trace id> <request>, tells the other city where the
+		// request comes from and lets it add to the trace of this request, "-"
+		// when there is no trace
+		String traceId = tracer.getTraceId();
+		m = ("T " + serverName + " " + (traceId != null ? traceId : "-") + " " + request).getBytes();
+		ServerEvents.DatagramRoundTrip roundTrip = new ServerEvents.DatagramRoundTrip();
+		roundTrip.begin();
+		long hopStart = tracer.start();
+		for (int attempt = 1;; attempt++) {
+			DatagramPacket packet = new DatagramPacket(m, m.length, host, serverPort);
+			long start = System.nanoTime();
+			aSocket.send(packet);
+			peer.sent(m.length);
+			byte[] buffer = new byte[1000];
+			DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+			try {
+				aSocket.receive(reply);
+			} catch (SocketTimeoutException e) {
+				peer.timedOut();
+				// the follower may be down, the city itself gets the next attempt
+				serverPort = getCityPort(city);
+				if (attempt >= attempts) {
+					commitRoundTrip(roundTrip, city, temp, attempt, m.length, 0, true);
+					throw e;
+				}
+				peer.retried();
+				continue;
+			}
+			peer.received(reply.getLength(), buffer.length, start);
+			tracer.span("remote-" + city + "-" + temp.charAt(0), hopStart);
+			commitRoundTrip(roundTrip, city, temp, attempt, m.length, reply.getLength(), false);
+			result += (new String(reply.getData(), 0, reply.getLength())).trim();
+			return result;
+		}
 	}
 
-	private boolean checkEventType(String eventType) {
-		return eventType.equals("Concerts") || eventType.equals("Art Gallery") || eventType.equals("Theatre");
+	private void commitRoundTrip(ServerEvents.DatagramRoundTrip roundTrip, String city, String requestString,
+			int attempts, int bytesSent, int bytesReceived, boolean timedOut) {
+		roundTrip.end();
+		if (!roundTrip.shouldCommit())
+			return;
+		roundTrip.server = serverName;
+		roundTrip.city = city;
+		roundTrip.opcode = requestString.substring(0, 1);
+		roundTrip.attempts = attempts;
+		roundTrip.bytesSent = (long) bytesSent * attempts;
+		roundTrip.bytesReceived = bytesReceived;
+		roundTrip.timedOut = timedOut;
+		roundTrip.commit();
 	}
 
-	private boolean checkIDLength(String eventID) {
-		return eventID.length() == 10;
+	/**
+	 * @param requestString
+	 * @return true if the request comes from a user's request and counts
+	 *         against the rate of the city that sent it, the replication
+	 *         requests are always let in
+	 */
+	public boolean isRateLimitedRequest(String requestString) {
+		char opcode = requestString.charAt(0);
+		return opcode == 'A' || opcode == 'P' || opcode == 'X' || opcode == 'B'
+				|| opcode == 'L' || opcode == 'O' || opcode == 'Q';
 	}
 
-	@Override
-	public boolean checkCity(String eventID) {
-		String city = eventID.substring(0, 3);
-		return city.equals("MTL") || city.equals("TOR") || city.equals("VAN");
+	/**
+	 * makes the executor of the SOAP requests, with a bounded number of threads
+	 * and a bounded queue. When both are full the HTTP dispatcher thread runs
+	 * the request itself, which stops it from accepting more until it is done.
+	 * 
+	 * @return
+	 */
+	public ExecutorService createRequestExecutor() {
+		int threads = Integer.getInteger("soap.threads", 48);
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Integer.getInteger("soap.queue", 100)), runnable -> {
+					Thread thread = new Thread(runnable, serverName + "-soap-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
 	}
 
-	private boolean checkTime(String eventID) {
-		char time = eventID.charAt(3);
-		return time == 'A' || time == 'M' || time == 'E';
+	/**
+	 * makes the executor asking the other cities for a request, with a bounded
+	 * number of threads and a bounded queue. When both are full the request
+	 * thread asks the city itself.
+	 * 
+	 * @return
+	 */
+	private ExecutorService createPeerExecutor() {
+		int threads = Integer.getInteger("peer.threads", 16);
+		AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Integer.getInteger("peer.queue", 100)), runnable -> {
+					Thread thread = new Thread(runnable, serverName + "-peer-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
 	}
 
-	private boolean checkDate(String eventID) {
-		String date = eventID.substring(4);
-		int day, month, year;
-		try {
-			day = Integer.parseInt(date.substring(0, 2));
-			month = Integer.parseInt(date.substring(2, 4));
-			year = Integer.parseInt(date.substring(4));
-			if (day < 0 || day > 30 || month < 0 || month > 12 || year < 0 || year > 25)
-				return false;
+	/**
+	 * gets the events changed after what a follower applied, with their
+	 * current state. The reply is
+	 * 
+	 * <pre>
+	 * M &lt;city&gt; &lt;epoch&gt; &lt;last seq sent&gt; &lt;last seq&gt; [R]
+	 * &lt;eventID&gt;;&lt;eventType&gt;;&lt;capacity&gt;;&lt;booked&gt;;&lt;participantID&gt;,...
+	 * </pre>
+	 * 
+	 * with a booked count of -1 for a removed event, and R when the follower
+	 * has to drop its copy first and the events start from the beginning.
+	 * 
+	 * @param followerName
+	 * @param epoch        epoch the follower is at
+	 * @param from         last sequence number the follower applied
+	 * @return
+	 */
+	private String getMutations(String followerName, long epoch, long from) {
+		boolean reload = mutationLog.mustReload(epoch, from);
+		if (reload)
+			from = 0;
+		mutationLog.pulled(followerName, from);
+		long head = mutationLog.getSeq();
+		ArrayList<String[]> changed = mutationLog.after(from, MAX_FOLLOWER_EVENTS);
+		String lines = "";
+		long last = from;
+		for (int i = 0; i < changed.size(); i++) {
+			String eventID = changed.get(i)[1];
+			String eventType = changed.get(i)[2];
+			Festival festival = getEvent(eventID, eventType);
+			String line;
+			if (festival == null)
+				line = eventID + ";" + eventType + ";-1";
 			else
-				return true;
-		} catch (NumberFormatException e) {
-			return false;
+				line = onEvent("followerRead", eventID,
+						() -> eventID + ";" + eventType + ";" + festival.getCapacity() + ";"
+								+ (festival.getBooked() + festival.getSeatHolds()) + ";"
+								+ String.join(",", festival.getBookings()));
+			if (!lines.isEmpty() && lines.length() + line.length() + 100 > MAX_FOLLOWER_DATAGRAM)
+				break;
+			lines += "\n" + line;
+			last = Long.parseLong(changed.get(i)[0]);
 		}
+		return "M " + serverName + " " + mutationLog.getEpoch() + " " + last + " " + Math.max(head, last)
+				+ (reload ? " R" : "") + lines;
 	}
 
-	@Override
-	public String showOptions(boolean isUserAdmin) {
-		int choice = -1;
-		String options;
-		if (isUserAdmin) {
-			options = "\t1. Add reservation slot\n" + "\t2. Remove reservation slot\n"
-					+ "\t3. List reservation slot available\n" + "\t4. Reserve ticket\n" + "\t5. Get event schedule\n"
-					+ "\t6. Cancel ticket\n" + "\t7. Exchange ticket\n" + "\tEnter 0 to exit.";
+	/**
+	 * sets an event of a follower to the state sent by the city it follows
+	 * 
+	 * @param line "eventID;eventType;capacity;booked;bookings" or
+	 *             "eventID;eventType;-1" if the event was removed
+	 */
+	public void applyMutation(String line) {
+		String[] fields = line.split(";", 5);
+		String eventID = fields[0];
+		String eventType = fields[1];
+		ConcurrentHashMap<String, Festival> event = database.get(eventType);
+		if (event == null)
+			return;
+		synchronized (catalogLock) {
+			if (fields.length < 5) {
+				event.remove(eventID);
+				calendar.remove(eventID, eventType);
+				occupancy.update(eventID, eventType, null);
+				return;
+			}
+			LinkedList<String> bookings = new LinkedList<String>();
+			if (!fields[4].isEmpty())
+				bookings.addAll(Arrays.asList(fields[4].split(",")));
+			// a new festival replaces the old one, readers see one or the other
+			Festival festival = new Festival(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), bookings, null);
+			event.put(eventID, festival);
+			calendar.add(eventID, eventType);
+			occupancy.update(eventID, eventType, festival);
+		}
+	}
 
-		} else {
-			options = "\t1. Reserve ticket\n" + "\t2. Get event schedule\n" + "\t3. Cancel ticket\n"
-					+ "\t4. Exchange ticket\n" + "\tEnter 0 to exit.";
+	/**
+	 * drops every event of a follower, before it loads the catalog again
+	 */
+	public void clearCatalog() {
+		synchronized (catalogLock) {
+			Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, ConcurrentHashMap<String, Festival>> typePair = it.next();
+				String eventType = typePair.getKey();
+				ConcurrentHashMap<String, Festival> event = typePair.getValue();
+				Iterator<String> eventIt = event.keySet().iterator();
+				while (eventIt.hasNext()) {
+					String eventID = eventIt.next();
+					calendar.remove(eventID, eventType);
+					occupancy.update(eventID, eventType, null);
+					eventIt.remove();
+				}
+			}
 		}
-		return options;
 	}
 
-	@Override
-	public boolean isAdmin(String userID) {
-		return userID.charAt(3) == 'A';
+	/**
+	 * gets the reply already sent to a datagram of another city
+	 * 
+	 * @param city           the city that sent it
+	 * @param idempotencyKey the key of the datagram, may be null
+	 * @return null if there is none
+	 */
+	public String getRecentReply(String city, String idempotencyKey) {
+		if (idempotencyKey == null)
+			return null;
+		return recentReplies.get(city + " " + idempotencyKey);
 	}
 
-	private String getServerName() {
-		return serverName.substring(0, 3);
+	/**
+	 * keeps the reply to a datagram of another city, for when it is sent again
+	 * 
+	 * @param city
+	 * @param idempotencyKey the key of the datagram, may be null
+	 * @param reply
+	 */
+	public void keepReply(String city, String idempotencyKey, String reply) {
+		if (idempotencyKey != null && reply != null && !reply.equals(AdmissionControl.BUSY))
+			recentReplies.put(city + " " + idempotencyKey, reply);
 	}
 
-	private String sendPacket(DatagramSocket aSocket, byte[] m, String temp, InetAddress host) throws IOException {
-		String result = "";
-		int serverPortMTL = 5000;
-		int serverPortTOR = 5001;
-		int serverPortVAN = 5002;
-		if (serverName.equals("MTL")) {
-			DatagramPacket request = new DatagramPacket(m, temp.length(), host, serverPortTOR);
-			aSocket.send(request);
-			byte[] buffer = new byte[1000];
-			DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-			aSocket.receive(reply);
-			result += "\t" + (new String(reply.getData())).trim() + "\n";
-			request = new DatagramPacket(m, temp.length(), host, serverPortVAN);
-			aSocket.send(request);
-			buffer = new byte[1000];
-			reply = new DatagramPacket(buffer, buffer.length);
-			aSocket.receive(reply);
-			result += "\t" + (new String(reply.getData())).trim();
-		} else if (serverName.equals("TOR")) {
-			DatagramPacket request = new DatagramPacket(m, temp.length(), host, serverPortMTL);
-			aSocket.send(request);
-			byte[] buffer = new byte[1000];
-			DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-			aSocket.receive(reply);
-			result += "\t" + (new String(reply.getData())).trim() + "\n";
-			request = new DatagramPacket(m, temp.length(), host, serverPortVAN);
-			aSocket.send(request);
-			buffer = new byte[1000];
-			reply = new DatagramPacket(buffer, buffer.length);
-			aSocket.receive(reply);
-			result += "\t" + (new String(reply.getData())).trim();
-		} else {
-			DatagramPacket request = new DatagramPacket(m, temp.length(), host, serverPortMTL);
-			aSocket.send(request);
-			byte[] buffer = new byte[1000];
-			DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-			aSocket.receive(reply);
-			result += "\t" + (new String(reply.getData())).trim() + "\n";
-			request = new DatagramPacket(m, temp.length(), host, serverPortTOR);
-			aSocket.send(request);
-			buffer = new byte[1000];
-			reply = new DatagramPacket(buffer, buffer.length);
-			aSocket.receive(reply);
-			result += "\t" + (new String(reply.getData())).trim();
-		}
-		return result;
+	/**
+	 * @return a key for a datagram sent by this city, unique across restarts
+	 */
+	private String newRequestKey() {
+		return requestKeyPrefix + "-" + requestKeys.incrementAndGet();
 	}
 
-	private String sendPacketToOneCity(DatagramSocket aSocket, byte[] m, String temp, InetAddress host, String city)
-			throws IOException {
-		String result = "";
-		int serverPortMTL = 5000;
-		int serverPortTOR = 5001;
-		int serverPortVAN = 5002;
-		int serverPort = 0;
-		if (city.equals("MTL")) {
-			serverPort = serverPortMTL;
-		} else if (city.equals("TOR")) {
-			serverPort = serverPortTOR;
-		} else {
-			serverPort = serverPortVAN;
-		}
-		DatagramPacket request = new DatagramPacket(m, temp.length(), host, serverPort);
-		aSocket.send(request);
-		byte[] buffer = new byte[1000];
-		DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
-		aSocket.receive(reply);
-		result += (new String(reply.getData())).trim();
-		return result;
+	/**
+	 * @param requestString
+	 * @return true if the request only reads, so it is sent without a key
+	 */
+	private boolean isReadOnlyRequest(String requestString) {
+		char opcode = requestString.charAt(0);
+		return opcode == 'A' || opcode == 'P' || opcode == 'Y' || opcode == 'S' || opcode == 'L' || opcode == 'O'
+				|| opcode == 'Q' || requestString.startsWith("W ?");
 	}
 
 	@Override
 	public String listReservationSlotAvailableLocal(String eventType) {
 		String result = "";
-		Map eventMap = database.get(eventType);
-		Iterator it = eventMap.entrySet().iterator();
+		Map<String, Festival> eventMap = database.get(eventType);
+		Iterator<Map.Entry<String, Festival>> it = eventMap.entrySet().iterator();
 		while (it.hasNext()) {
-			Map.Entry eventPair = (Map.Entry) it.next();
-			Festival temp = ((Festival) eventPair.getValue());
-			result += "\t" + eventPair.getKey() + " " + (temp.getCapacity() - temp.getBooked()) + "\n";
+			Map.Entry<String, Festival> eventPair = it.next();
+			Festival temp = eventPair.getValue();
+			result += "\t" + eventPair.getKey() + " " + temp.getRemaining() + "\n";
 		}
 		return result;
 	}
 
+	/**
+	 * gets the local event schedules of several users with one pass over the
+	 * database
+	 * 
+	 * @param participantIDs
+	 * @return the schedule of each user, in the format of getEventScheduleLocal
+	 */
+	private HashMap<String, String> getEventSchedulesLocal(Set<String> participantIDs) {
+		HashMap<String, String> schedules = new HashMap<String, String>();
+		Iterator<String> participantIt = participantIDs.iterator();
+		while (participantIt.hasNext())
+			schedules.put(participantIt.next(), "");
+		Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ConcurrentHashMap<String, Festival>> dbPair = it.next();
+			Iterator<Map.Entry<String, Festival>> iterator = dbPair.getValue().entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Festival> eventPair = iterator.next();
+				Festival festival = eventPair.getValue();
+				Iterator<String> bookingIt = festival.getBookings().iterator();
+				while (bookingIt.hasNext()) {
+					String participantID = bookingIt.next();
+					String schedule = schedules.get(participantID);
+					if (schedule != null)
+						schedules.put(participantID, schedule + "\t" + eventPair.getKey() + "\n");
+				}
+			}
+		}
+		return schedules;
+	}
+
 	@Override
 	public String getEventScheduleLocal(String participantID) {
 		String result = "";
-		Iterator it = database.entrySet().iterator();
+		Iterator<Map.Entry<String, ConcurrentHashMap<String, Festival>>> it = database.entrySet().iterator();
 		while (it.hasNext()) {
-			Map.Entry dbPair = (Map.Entry) it.next();
-			Iterator iterator = ((HashMap<String, Festival>) dbPair.getValue()).entrySet().iterator();
+			Map.Entry<String, ConcurrentHashMap<String, Festival>> dbPair = it.next();
+			Iterator<Map.Entry<String, Festival>> iterator = dbPair.getValue().entrySet().iterator();
 			while (iterator.hasNext()) {
-				Map.Entry eventPair = (Map.Entry) iterator.next();
-				Festival festival = ((Festival) eventPair.getValue());
+				Map.Entry<String, Festival> eventPair = iterator.next();
+				Festival festival = eventPair.getValue();
 				if (festival.isUserBooked(participantID)) {
 					result += "\t" + eventPair.getKey() + "\n";
 				}
@@ -9,12 +9,27 @@ import javax.jws.soap.SOAPBinding.Style;
 public interface ServerOperationsInterface 
 {
   String addReservationSlot (String eventID, String eventType, int capacity);
+  String importReservationSlots (String slots);
   String removeReservationSlot (String eventID, String eventType);
   String listReservationSlotAvailable (String eventType);
+  String listReservationSlotsBetween (String eventType, String fromDate, String toDate);
+  String findAvailableSlots (String eventType, String date, int count);
   String reserveTicket (String participantID, String eventID, String eventType);
   String getEventSchedule (String participantID);
   String cancelTicket (String participantID, String eventID);
+  String holdTicket (String participantID, String eventID, String eventType);
+  String confirmHold (String participantID, String eventID);
+  String releaseHold (String participantID, String eventID);
+  String joinWaitlist (String participantID, String eventID, String eventType);
+  String getNotifications (String participantID);
+  String getArchivedEvents (String key);
   String exchangeTickets (String participantID, String eventID, String newEventID, String newEventType);
+  String[] reserveTickets (String[] participantIDs, String[] eventIDs, String[] eventTypes);
+  String[] cancelTickets (String[] participantIDs, String[] eventIDs);
+  String subscribe (String topic, String callbackHost, int callbackPort);
+  String unsubscribe (String subscriptionID);
+  String getOccupancySummary ();
+  String getStats ();
   String showOptions (boolean isUserAdmin);
   boolean isAdmin (String userID);
   boolean checkCity (String eventID);
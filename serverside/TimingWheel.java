@@ -0,0 +1,124 @@
+package serverside;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel. Time is cut into ticks and the wheel has one bucket per
+ * tick, a timeout goes into the bucket of its deadline with the number of
+ * turns of the wheel still to wait. Every tick the thread of the wheel only
+ * looks at one bucket, so scheduling, cancelling and expiring a timeout are
+ * O(1) however many are waiting. Timeouts expire up to one tick late.
+ */
+public class TimingWheel extends Thread {
+
+	public class Timeout {
+		private String key;
+		private long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * stops the timeout from expiring, it is dropped at its next tick
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private long tickNanos;
+	private long startTime;
+	private long tick;
+	private ArrayDeque<Timeout>[] buckets;
+	// scheduled since the last tick, moved into their bucket by the wheel thread
+	private ConcurrentLinkedQueue<Timeout> scheduled;
+	private Consumer<Timeout> expired;
+
+	/**
+	 * @param name       name of the thread
+	 * @param tickMillis milliseconds per tick
+	 * @param wheelSize  number of buckets
+	 * @param expired    called on the wheel thread with each timeout that
+	 *                   expires
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(String name, long tickMillis, int wheelSize, Consumer<Timeout> expired) {
+		super(name);
+		this.tickNanos = Math.max(1, tickMillis) * 1000000;
+		this.buckets = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[Math.max(1, wheelSize)];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new ArrayDeque<Timeout>();
+		this.scheduled = new ConcurrentLinkedQueue<Timeout>();
+		this.expired = expired;
+		this.startTime = System.nanoTime();
+		setDaemon(true);
+	}
+
+	/**
+	 * @param key          what the timeout is for
+	 * @param delayMillis
+	 * @return the timeout, to cancel it
+	 */
+	public Timeout schedule(String key, long delayMillis) {
+		Timeout timeout = new Timeout();
+		timeout.key = key;
+		timeout.deadline = System.nanoTime() + delayMillis * 1000000;
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	public void run() {
+		while (true) {
+			long next = startTime + (tick + 1) * tickNanos;
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			addScheduled();
+			expireBucket(buckets[(int) (tick % buckets.length)]);
+			tick++;
+		}
+	}
+
+	private void addScheduled() {
+		Timeout timeout = scheduled.poll();
+		while (timeout != null) {
+			if (!timeout.cancelled) {
+				// a deadline already passed goes in the current bucket
+				long deadlineTick = Math.max(tick, (timeout.deadline - startTime + tickNanos - 1) / tickNanos);
+				timeout.rounds = (deadlineTick - tick) / buckets.length;
+				buckets[(int) (deadlineTick % buckets.length)].add(timeout);
+			}
+			timeout = scheduled.poll();
+		}
+	}
+
+	private void expireBucket(ArrayDeque<Timeout> bucket) {
+		Iterator<Timeout> it = bucket.iterator();
+		while (it.hasNext()) {
+			Timeout timeout = it.next();
+			if (timeout.cancelled) {
+				it.remove();
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				it.remove();
+				try {
+					expired.accept(timeout);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
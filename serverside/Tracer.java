@@ -0,0 +1,154 @@
+package serverside;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long the parts of a request take and writes one line per
+ * request to a trace file:
+ *
+ * <pre>
+ * &lt;time&gt; trace=&lt;id&gt; origin=&lt;city or client&gt; op=&lt;operation&gt; total=&lt;us&gt; &lt;span&gt;=&lt;us&gt; ...
+ * </pre>
+ *
+ * The trace id comes from the client, or from the city that sent the
+ * datagram, so the lines of all the servers a request went through can be
+ * matched. A request handled on a thread that already has a trace (a
+ * datagram calling reserveTicket for instance) adds its spans to that trace.
+ * The lines are written by one thread keeping the file open, and dropped when
+ * it falls behind.
+ */
+public class Tracer {
+
+	private class Trace {
+		String id;
+		String origin;
+		String operation;
+		long start;
+		StringBuilder spans = new StringBuilder();
+	}
+
+	private String fileName;
+	private boolean enabled;
+	private ThreadLocal<Trace> current;
+	// lines waiting to be written, and how many did not fit
+	private ArrayBlockingQueue<String> lines;
+	private AtomicLong dropped;
+
+	/**
+	 * @param fileName
+	 * @param enabled
+	 * @param maxQueued lines waiting to be written before new ones are dropped
+	 */
+	public Tracer(String fileName, boolean enabled, int maxQueued) {
+		this.fileName = fileName;
+		this.enabled = enabled;
+		this.current = new ThreadLocal<Trace>();
+		this.lines = new ArrayBlockingQueue<String>(maxQueued);
+		this.dropped = new AtomicLong();
+		if (enabled) {
+			Thread writer = new Thread(() -> write(), fileName + "-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * writes the queued lines to the trace file, flushing it when the queue is
+	 * empty
+	 */
+	private void write() {
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName, true))) {
+			while (true) {
+				String line = lines.take();
+				long lost = dropped.getAndSet(0);
+				if (lost > 0)
+					writer.write(lost + " traces dropped\n");
+				writer.write(line);
+				if (lines.isEmpty())
+					writer.flush();
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (IOException e) {
+			System.out.println("Writing to file error.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * starts the trace of a request on this thread, unless one is already
+	 * started
+	 *
+	 * @param operation
+	 * @param traceId   id received with the request, or null to make a new one
+	 * @param origin    who sent the request
+	 */
+	public void begin(String operation, String traceId, String origin) {
+		if (!enabled)
+			return;
+		// only a datagram's trace is continued, a client trace still on the
+		// thread was left behind by a request that failed
+		Trace existing = current.get();
+		if (existing != null && !existing.origin.equals("client"))
+			return;
+		Trace trace = new Trace();
+		trace.id = traceId != null ? traceId : UUID.randomUUID().toString().substring(0, 8);
+		trace.origin = origin;
+		trace.operation = operation;
+		trace.start = System.nanoTime();
+		current.set(trace);
+	}
+
+	/**
+	 * @return the id of the trace of this thread, or null if there is none
+	 */
+	public String getTraceId() {
+		Trace trace = current.get();
+		return trace == null ? null : trace.id;
+	}
+
+	/**
+	 * @return System.nanoTime(), to pass to span
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * records a part of the request of this thread
+	 *
+	 * @param name
+	 * @param startNanos
+	 */
+	public void span(String name, long startNanos) {
+		Trace trace = current.get();
+		if (trace == null)
+			return;
+		trace.spans.append(' ').append(name).append('=').append((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * ends the trace of this thread if it was started by operation, and queues
+	 * it for the trace file
+	 *
+	 * @param operation
+	 */
+	public void finish(String operation) {
+		Trace trace = current.get();
+		if (trace == null || !trace.operation.equals(operation))
+			return;
+		current.remove();
+		String time = LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss"));
+		String line = time + " trace=" + trace.id + " origin=" + trace.origin + " op=" + trace.operation + " total="
+				+ (System.nanoTime() - trace.start) / 1000 + trace.spans + "\n";
+		if (!lines.offer(line))
+			dropped.incrementAndGet();
+	}
+}
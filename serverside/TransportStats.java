@@ -0,0 +1,117 @@
+package serverside;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the datagrams exchanged with each other city: round trip
+ * times, datagrams and bytes sent and received, replies that filled the
+ * whole receive buffer (and were probably cut), timeouts and retries.
+ */
+public class TransportStats {
+
+	public class Peer {
+		LatencyHistogram roundTrip = new LatencyHistogram();
+		LongAdder sent = new LongAdder();
+		LongAdder received = new LongAdder();
+		LongAdder bytesSent = new LongAdder();
+		LongAdder bytesReceived = new LongAdder();
+		LongAdder truncated = new LongAdder();
+		LongAdder timeouts = new LongAdder();
+		LongAdder retries = new LongAdder();
+
+		public void sent(int bytes) {
+			sent.increment();
+			bytesSent.add(bytes);
+		}
+
+		/**
+		 * @param bytes      length of the reply
+		 * @param bufferSize size of the receive buffer
+		 * @param startNanos System.nanoTime() when the request was sent
+		 */
+		public void received(int bytes, int bufferSize, long startNanos) {
+			roundTrip.record((System.nanoTime() - startNanos) / 1000);
+			received.increment();
+			bytesReceived.add(bytes);
+			if (bytes >= bufferSize)
+				truncated.increment();
+		}
+
+		public void timedOut() {
+			timeouts.increment();
+		}
+
+		public void retried() {
+			retries.increment();
+		}
+
+		private String summary() {
+			return "sent=" + sent.sum() + " received=" + received.sum() + " bytesSent=" + bytesSent.sum()
+					+ " bytesReceived=" + bytesReceived.sum() + " truncated=" + truncated.sum() + " timeouts="
+					+ timeouts.sum() + " retries=" + retries.sum() + " rtt " + roundTrip.summary();
+		}
+	}
+
+	private ConcurrentHashMap<String, Peer> peers;
+
+	public TransportStats() {
+		peers = new ConcurrentHashMap<String, Peer>();
+	}
+
+	public Peer peer(String city) {
+		return peers.computeIfAbsent(city, name -> new Peer());
+	}
+
+	/**
+	 * one line per city, round trip times in microseconds
+	 *
+	 * @return
+	 */
+	public String report() {
+		String result = "";
+		Iterator<Map.Entry<String, Peer>> it = new TreeMap<String, Peer>(peers).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Peer> peerPair = it.next();
+			result += "\tpeer " + peerPair.getKey() + " " + peerPair.getValue().summary() + "\n";
+		}
+		return result;
+	}
+
+	/**
+	 * appends the report to a file at a fixed interval
+	 *
+	 * @param fileName
+	 * @param interval milliseconds between summaries
+	 */
+	public void startSummaries(String fileName, long interval) {
+		Thread summaries = new Thread(() -> {
+			DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+			while (true) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					FileWriter writer = new FileWriter(fileName, true);
+					writer.write("Transport summary " + LocalDateTime.now().format(formatter) + "\n");
+					writer.write(report());
+					writer.close();
+				} catch (IOException e) {
+					System.out.println("Writing to file error.");
+					e.printStackTrace();
+				}
+			}
+		});
+		summaries.setDaemon(true);
+		summaries.start();
+	}
+}
@@ -14,7 +14,7 @@ public class VANServer extends Thread {
 
 	static String city;
 	static int serverPort;
-	static ServerOperationsInterface serverOps;
+	static ServerOperationsImpl serverOps;
 
 	public static void main(String[] args) throws Exception {
 
@@ -79,7 +79,15 @@ public class VANServer extends Thread {
 		
 		serverOps = new ServerOperationsImpl(city, sampleDB);
 
-		Endpoint endpoint = Endpoint.publish("http://localhost:6002/van", serverOps);
+		// optional file of "eventID,eventType,capacity" lines to load at startup
+		if (args.length > 0)
+			System.out.println(serverOps.importReservationSlotsFile(args[0]));
+
+		// bounded request threads, the default runs every request on the HTTP
+		// dispatcher thread
+		Endpoint endpoint = Endpoint.create(serverOps);
+		endpoint.setExecutor(serverOps.createRequestExecutor());
+		endpoint.publish("http://localhost:6002/van");
 
 		// wait for invocations from clients
 		VANServer udpServer = new VANServer();
@@ -101,59 +109,77 @@ public class VANServer extends Thread {
 				buffer = new byte[1000];
 				DatagramPacket request = new DatagramPacket(buffer, buffer.length);
 				aSocket.receive(request);
-				String requestString = (new String(request.getData())).trim();
-				String[] requestStringArr = requestString.split(" ");
-				if (requestString.charAt(0) == 'A') {
-					String eventType = requestStringArr[1];
-					String result = serverOps.listReservationSlotAvailableLocal(eventType);
-					byte[] m = result.getBytes();
-					DatagramPacket reply = new DatagramPacket(m, result.length(), request.getAddress(),
-							request.getPort());
-					aSocket.send(reply);
-				} else if (requestString.charAt(0) == 'P') {
-					String participantID = requestString.substring(2);
-					String result = serverOps.getEventScheduleLocal(participantID);
-					byte[] m = result.getBytes();
-					DatagramPacket reply = new DatagramPacket(m, result.length(), request.getAddress(),
-							request.getPort());
-					aSocket.send(reply);
-				} else if (requestString.charAt(0) == 'C') {
-					String participantID = requestStringArr[1];
-					String tbaEventStr = requestStringArr[2];
-					String newEventType = requestStringArr[3];
-					if (requestStringArr[3].equals("Art")) {
-						newEventType = requestStringArr[3] + " " + requestStringArr[4];
-					} else
-						newEventType = requestStringArr[3];
-					Festival tbaEvent = serverOps.getEvent(tbaEventStr, newEventType);
-					String result = null;
-					if (tbaEvent != null) {
-						boolean tbaEventContainsUser = tbaEvent.isUserBooked(participantID);
-						if (tbaEventContainsUser) {
-							result = "1 1";
+				try {
+					String requestString = (new String(request.getData())).trim();
+					// T <origin city> <trace id> <request>, request of another city, the
+					// trace id is "-" when it is not traced
+					String traceOrigin = "udp";
+					String traceId = null;
+					if (requestString.startsWith("T ")) {
+						String[] envelope = requestString.split(" ", 4);
+						traceOrigin = envelope[1];
+						traceId = envelope[2].equals("-") ? null : envelope[2];
+						requestString = envelope[3];
+					}
+					// K <key> <request>, a request that changes something, a copy sent
+					// again gets the reply of the first one
+					String idempotencyKey = null;
+					if (requestString.startsWith("K ")) {
+						String[] envelope = requestString.split(" ", 3);
+						idempotencyKey = envelope[1];
+						requestString = envelope[2];
+						String recentReply = serverOps.getRecentReply(traceOrigin, idempotencyKey);
+						if (recentReply != null) {
+							byte[] m = recentReply.getBytes();
+							aSocket.send(new DatagramPacket(m, m.length, request.getAddress(), request.getPort()));
+							continue;
+						}
+					}
+					if (!traceOrigin.equals("udp") && serverOps.isRateLimitedRequest(requestString)
+							&& !serverOps.admission.admitCity(traceOrigin)) {
+						byte[] m = AdmissionControl.BUSY.getBytes();
+						aSocket.send(new DatagramPacket(m, m.length, request.getAddress(), request.getPort()));
+						continue;
+					}
+					String[] requestStringArr = requestString.split(" ");
+					String operation = "udp " + requestString.charAt(0);
+					long start = System.nanoTime();
+					boolean success = false;
+					serverOps.tracer.begin(operation, traceId, traceOrigin);
+					try {
+						if (requestString.charAt(0) == 'A') {
+							String eventType = requestStringArr[1];
+							String result = serverOps.listReservationSlotAvailableLocal(eventType);
+							byte[] m = result.getBytes();
+							DatagramPacket reply = new DatagramPacket(m, result.length(), request.getAddress(),
+									request.getPort());
+							aSocket.send(reply);
+						} else if (requestString.charAt(0) == 'P') {
+							String participantID = requestString.substring(2);
+							String result = serverOps.getEventScheduleLocal(participantID);
+							byte[] m = result.getBytes();
+							DatagramPacket reply = new DatagramPacket(m, result.length(), request.getAddress(),
+									request.getPort());
+							aSocket.send(reply);
 						} else {
-							result = "1 0";
+							String result = serverOps.handlePeerRequest(requestString);
+							serverOps.keepReply(traceOrigin, idempotencyKey, result);
+							if (result != null) {
+								byte[] m = result.getBytes();
+								DatagramPacket reply = new DatagramPacket(m, m.length, request.getAddress(),
+										request.getPort());
+								aSocket.send(reply);
+							}
 						}
-					} else {
-						result = "0 0";
+						success = true;
+					} finally {
+						serverOps.stats.record(operation, success, start);
+						serverOps.tracer.finish(operation);
 					}
-					byte[] m = result.getBytes();
-					DatagramPacket reply = new DatagramPacket(m, result.length(), request.getAddress(),
-							request.getPort());
-					aSocket.send(reply);
-				} else if (requestString.charAt(0) == 'R') {
-					String participantID = requestStringArr[1];
-					String tbaEventStr = requestStringArr[2];
-					String newEventType = "";
-					if (requestStringArr[3].equals("Art")) {
-						newEventType = requestStringArr[3] + " " + requestStringArr[4];
-					} else
-						newEventType = requestStringArr[3];
-					String result = serverOps.reserveTicket(participantID, tbaEventStr, newEventType);
-					byte[] m = result.getBytes();
-					DatagramPacket reply = new DatagramPacket(m, result.length(), request.getAddress(),
-							request.getPort());
-					aSocket.send(reply);
+				} catch (RuntimeException e) {
+					// a bad request is dropped without reply, the server keeps going
+					System.out.println(city + " could not handle a request: " + e);
+					e.printStackTrace();
 				}
 			}
 		} catch (SocketException e) {